@@ -0,0 +1,54 @@
+package uu.toolbox.core;
+
+import android.graphics.Bitmap;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class UUBitmapPoolTests
+{
+    @Test
+    public void test_0000_reuseBySize() throws Exception
+    {
+        UUBitmapPool pool = new UUBitmapPool(10 * 1024 * 1024);
+
+        Bitmap small = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap large = Bitmap.createBitmap(400, 400, Bitmap.Config.ARGB_8888);
+        Assert.assertTrue(pool.put(small));
+        Assert.assertTrue(pool.put(large));
+
+        Assert.assertSame("Expect the smallest bitmap that fits", small, pool.get(80, 80, Bitmap.Config.ARGB_8888));
+        Assert.assertNull("Expect a bitmap far bigger than needed to not be used", pool.get(10, 10, Bitmap.Config.ARGB_8888));
+        Assert.assertSame(large, pool.get(300, 300, Bitmap.Config.ARGB_8888));
+        Assert.assertNull("Expect an empty pool to miss", pool.get(300, 300, Bitmap.Config.ARGB_8888));
+
+        UUBitmapPool.Stats stats = pool.getStats();
+        Assert.assertEquals(2, stats.hitCount);
+        Assert.assertEquals(2, stats.missCount);
+        Assert.assertEquals(0.5f, stats.getHitRate(), 0.001f);
+        Assert.assertEquals(0, stats.currentSize);
+    }
+
+    @Test
+    public void test_0001_evictToMaxSize() throws Exception
+    {
+        Bitmap a = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap b = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+
+        UUBitmapPool pool = new UUBitmapPool(a.getAllocationByteCount() + b.getAllocationByteCount() - 1);
+        Assert.assertTrue(pool.put(a));
+        Assert.assertTrue(pool.put(b));
+
+        UUBitmapPool.Stats stats = pool.getStats();
+        Assert.assertEquals(1, stats.evictionCount);
+        Assert.assertEquals(1, stats.bitmapCount);
+        Assert.assertTrue("Expect the larger bitmap to be evicted", b.isRecycled());
+        Assert.assertFalse(pool.put(Bitmap.createBitmap(new int[] { 0 }, 1, 1, Bitmap.Config.ARGB_8888)));
+    }
+}
@@ -0,0 +1,99 @@
+package uu.toolbox.core;
+
+import android.content.ComponentCallbacks2;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class UUMemoryBudgetTests
+{
+    private static class TestClient implements UUMemoryBudget.Client
+    {
+        long limit = -1;
+        long usage = 0;
+
+        @Override
+        public long getMemoryUsage()
+        {
+            return usage;
+        }
+
+        @Override
+        public void setMemoryLimit(long maxBytes)
+        {
+            limit = maxBytes;
+            usage = Math.min(usage, maxBytes);
+        }
+
+        @Override
+        public void trimMemory(long targetBytes)
+        {
+            usage = Math.min(usage, targetBytes);
+        }
+    }
+
+    @Test
+    public void test_0000_sharesSplitBudget() throws Exception
+    {
+        UUMemoryBudget budget = new UUMemoryBudget(4000);
+        TestClient a = new TestClient();
+        TestClient b = new TestClient();
+
+        budget.register(a, 1.0f);
+        Assert.assertEquals("Expect a single client to get the whole budget", 4000, a.limit);
+
+        budget.register(b, 3.0f);
+        Assert.assertEquals(1000, a.limit);
+        Assert.assertEquals(3000, b.limit);
+
+        budget.setTotalBudget(8000);
+        Assert.assertEquals(2000, a.limit);
+        Assert.assertEquals(6000, b.limit);
+
+        budget.unregister(b);
+        Assert.assertEquals(8000, a.limit);
+        Assert.assertEquals(0, budget.getBudget(b));
+    }
+
+    @Test
+    public void test_0001_trimLevels() throws Exception
+    {
+        UUMemoryBudget budget = new UUMemoryBudget(4000);
+        TestClient a = new TestClient();
+        budget.register(a, 1.0f);
+
+        a.usage = 4000;
+        budget.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        Assert.assertEquals("Expect moderate running pressure to keep everything", 4000, budget.getTotalUsage());
+
+        budget.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        Assert.assertEquals("Expect low running pressure to halve the cache", 2000, budget.getTotalUsage());
+
+        budget.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        Assert.assertEquals(0, budget.getTotalUsage());
+        Assert.assertEquals("Expect trimming to leave the limit alone", 4000, a.limit);
+    }
+
+    @Test
+    public void test_0002_budgetForShare() throws Exception
+    {
+        UUMemoryBudget budget = new UUMemoryBudget(9000);
+        Assert.assertEquals("Expect the first client to get the whole budget", 9000, budget.getBudgetForShare(1.0f));
+
+        TestClient a = new TestClient();
+        budget.register(a, 1.0f);
+
+        long expected = budget.getBudgetForShare(2.0f);
+        TestClient b = new TestClient();
+        budget.register(b, 2.0f);
+
+        Assert.assertEquals(6000, expected);
+        Assert.assertEquals("Expect the estimate to match the limit given on register", expected, b.limit);
+    }
+}
@@ -1,5 +1,8 @@
 package uu.toolbox.data;
 
+import android.content.ComponentCallbacks2;
+
+import androidx.annotation.NonNull;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
@@ -10,10 +13,20 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import uu.toolbox.core.UUDate;
+import uu.toolbox.core.UUFile;
 import uu.toolbox.core.UURandom;
 import uu.toolbox.core.UUThread;
 
@@ -22,7 +35,6 @@ import uu.toolbox.core.UUThread;
 public class UUDataCacheTests
 {
     private static final String TEST_FILE = "test_file.dat";
-    private static final String TEST_FILE_SANITIZED = "test-file-dat";
 
     private static UUDataCache dataCache;
 
@@ -72,7 +84,7 @@ public class UUDataCacheTests
         Assert.assertEquals("Expect cached key count to be one", 1, keys.size());
 
         String key = keys.get(0);
-        Assert.assertEquals("Expect key to be our test file", TEST_FILE_SANITIZED, key);
+        Assert.assertEquals("Expect key to be our test file", TEST_FILE, key);
     }
 
     @Test
@@ -238,4 +250,382 @@ public class UUDataCacheTests
         keys = dc.listKeys();
         Assert.assertEquals("Expect count after purge to be 10", count, keys.size());
     }
+
+    @Test
+    public void test_0010_memoryCacheHit() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        byte[] data = UURandom.randomBytes(1024);
+        dc.setData(data, TEST_FILE);
+
+        int hitsBefore = dc.getMemoryCacheHitCount();
+
+        byte[] contents = dc.getData(TEST_FILE);
+        Assert.assertArrayEquals("Expect to read same bytes that were written", data, contents);
+        Assert.assertEquals("Expect read after write to come from memory", hitsBefore + 1, dc.getMemoryCacheHitCount());
+        Assert.assertTrue("Expect memory usage to include the entry", dc.getMemoryCacheUsage() >= data.length);
+
+        dc.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        Assert.assertEquals("Expect memory tier to be empty after trim", 0, dc.getMemoryCacheUsage());
+
+        contents = dc.getData(TEST_FILE);
+        Assert.assertArrayEquals("Expect disk tier to still have the data after trim", data, contents);
+    }
+
+    @Test
+    public void test_0011_purgeExpiredDataInBackground() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        int count = 600;
+        for (int i = 0; i < count; i++)
+        {
+            byte[] data = UURandom.randomBytes(100);
+            dc.setData(data, String.valueOf(i));
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final UUDataCache.PurgeReport[] result = new UUDataCache.PurgeReport[1];
+
+        dc.setDataExpirationInterval(0);
+        dc.purgeExpiredDataInBackground(5, report ->
+        {
+            result[0] = report;
+            latch.countDown();
+        });
+
+        latch.await();
+
+        Assert.assertNotNull("Expect a purge report", result[0]);
+        Assert.assertEquals("Expect all entries to be purged", count, result[0].entriesRemoved);
+        Assert.assertEquals("Expect all bytes to be reclaimed", count * 100, result[0].bytesRemoved);
+        Assert.assertEquals("Expect no keys after purge", 0, dc.listKeys().size());
+    }
+
+    @Test
+    public void test_0012_diskCacheSizeLimit() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        int entrySize = 100;
+        int maxSize = entrySize * 10;
+        dc.setMaxDiskCacheSize(maxSize);
+        dc.setEvictionPolicy(UUDataCache.EvictionPolicy.LRU);
+
+        for (int i = 0; i < 20; i++)
+        {
+            byte[] data = UURandom.randomBytes(entrySize);
+            dc.setData(data, String.valueOf(i));
+        }
+
+        waitForWorker(dc);
+
+        Assert.assertTrue("Expect disk usage to be within the max size", dc.getDiskCacheUsage() <= maxSize);
+        Assert.assertTrue("Expect some keys to be evicted", dc.listKeys().size() <= 10);
+        Assert.assertTrue("Expect most recent entry to survive eviction", dc.doesDataExist("19"));
+
+        dc.setMaxDiskCacheSize(UUDataCache.DEFAULT_MAX_DISK_CACHE_SIZE);
+    }
+
+    @Test
+    public void test_0013_keysThatSanitizeToSameNameDoNotCollide() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        String keyA = "a/b?c";
+        String keyB = "a-b-c";
+
+        byte[] dataA = UURandom.randomBytes(32);
+        byte[] dataB = UURandom.randomBytes(64);
+        dc.setData(dataA, keyA);
+        dc.setData(dataB, keyB);
+        dc.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        Assert.assertArrayEquals("Expect first key to keep its own data", dataA, dc.getData(keyA));
+        Assert.assertArrayEquals("Expect second key to keep its own data", dataB, dc.getData(keyB));
+
+        ArrayList<String> keys = dc.listKeys();
+        Assert.assertEquals("Expect both keys to be listed", 2, keys.size());
+        Assert.assertTrue("Expect original keys to be listed", keys.contains(keyA) && keys.contains(keyB));
+    }
+
+    @Test
+    public void test_0014_checksumMismatchIsAMiss() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.setChecksumVerificationEnabled(true);
+        dc.clearCache();
+
+        byte[] data = UURandom.randomBytes(256);
+        dc.setData(data, TEST_FILE);
+        dc.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        Assert.assertArrayEquals("Expect verified data to be returned", data, dc.getData(TEST_FILE));
+
+        dc.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        UUFile.writeFile(dc.getDiskFileName(TEST_FILE), UURandom.randomBytes(256));
+
+        Assert.assertNull("Expect corrupted data to be treated as a miss", dc.getData(TEST_FILE));
+        Assert.assertFalse("Expect corrupted data to be removed", dc.doesDataExist(TEST_FILE));
+
+        dc.setData(data, TEST_FILE);
+        dc.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        UUFile.writeFile(dc.getDiskFileName(TEST_FILE), UURandom.randomBytes(256));
+
+        InputStream is = dc.openInputStream(TEST_FILE);
+        Assert.assertNotNull(is);
+
+        boolean failed = false;
+        try
+        {
+            byte[] buffer = new byte[64];
+            while (is.read(buffer) != -1)
+            {
+                // Read to the end so the checksum is verified
+            }
+        }
+        catch (IOException ex)
+        {
+            failed = true;
+        }
+        finally
+        {
+            is.close();
+        }
+
+        Assert.assertTrue("Expect corrupted stream to fail at the end", failed);
+        Assert.assertFalse("Expect corrupted streamed data to be removed", dc.doesDataExist(TEST_FILE));
+
+        dc.setChecksumVerificationEnabled(false);
+    }
+
+    @Test
+    public void test_0015_streamingReadWrite() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        byte[] data = UURandom.randomBytes(64 * 1024);
+
+        UUDataCache.EntryOutputStream aborted = dc.openOutputStream(TEST_FILE);
+        Assert.assertNotNull(aborted);
+        aborted.write(data);
+        aborted.abort();
+        Assert.assertFalse("Expect aborted stream to not create data", dc.doesDataExist(TEST_FILE));
+
+        OutputStream os = dc.openOutputStream(TEST_FILE);
+        Assert.assertNotNull(os);
+        os.write(data, 0, 1000);
+        os.write(data, 1000, data.length - 1000);
+        os.close();
+
+        Assert.assertTrue(dc.doesDataExist(TEST_FILE));
+
+        dc.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        InputStream is = dc.openInputStream(TEST_FILE);
+        Assert.assertNotNull(is);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = is.read(buffer)) != -1)
+        {
+            bos.write(buffer, 0, count);
+        }
+        is.close();
+
+        Assert.assertArrayEquals("Expect streamed data to match", data, bos.toByteArray());
+        Assert.assertArrayEquals("Expect streamed data to be readable as bytes", data, dc.getData(TEST_FILE));
+    }
+
+    @Test
+    public void test_0016_mappedRead() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        Assert.assertNull("Expect missing data to map to null", dc.getMappedData(TEST_FILE));
+
+        byte[] data = UURandom.randomBytes(1024 * 1024);
+        dc.setData(data, TEST_FILE);
+        dc.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        ByteBuffer buffer = dc.getMappedData(TEST_FILE);
+        Assert.assertNotNull(buffer);
+        Assert.assertTrue("Expect mapped data to be read only", buffer.isReadOnly());
+        Assert.assertEquals(data.length, buffer.remaining());
+
+        byte[] mapped = new byte[buffer.remaining()];
+        buffer.get(mapped);
+        Assert.assertArrayEquals("Expect mapped data to match", data, mapped);
+    }
+
+    @Test
+    public void test_0017_queuedMetaDataWrites() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        for (int i = 0; i < 100; i++)
+        {
+            HashMap<String, Object> md = new HashMap<>();
+            md.put("Counter", i);
+            dc.setMetaData(md, TEST_FILE);
+        }
+
+        HashMap<String, Object> md = dc.getMetaData(TEST_FILE);
+        Assert.assertEquals("Expect the last queued write to be visible", 99, md.get("Counter"));
+
+        dc.removeData(TEST_FILE);
+        Assert.assertTrue("Expect a queued remove to be visible", dc.getMetaData(TEST_FILE).isEmpty());
+
+        byte[] data = UURandom.randomBytes(128);
+        dc.setData(data, TEST_FILE);
+        dc.flushMetaData();
+
+        ArrayList<String> keys = dc.listKeys();
+        Assert.assertEquals(1, keys.size());
+        Assert.assertEquals(TEST_FILE, keys.get(0));
+        Assert.assertNotNull(dc.getMetaData(TEST_FILE).get(UUDataCache.MetaData.Timestamp));
+        Assert.assertNull("Expect meta data written before the remove to be gone", dc.getMetaData(TEST_FILE).get("Counter"));
+    }
+
+    @Test
+    public void test_0018_concurrentAccessStress() throws Exception
+    {
+        final UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.setChecksumVerificationEnabled(true);
+        dc.clearCache();
+
+        final int threadCount = 16;
+        final int iterations = 200;
+        final String[] keys = new String[] { "stress_a", "stress_b", "stress_c", "stress_d" };
+        final AtomicInteger failures = new AtomicInteger(0);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int seed = t;
+
+            new Thread(() ->
+            {
+                try
+                {
+                    startLatch.await();
+
+                    for (int i = 0; i < iterations; i++)
+                    {
+                        String key = keys[(seed + i) % keys.length];
+                        int op = (seed * 31 + i) % 4;
+
+                        if (op == 0)
+                        {
+                            // Every byte of an object is the same value, so a torn write is detectable
+                            byte[] data = new byte[1024 + (i * 37) % 4096];
+                            Arrays.fill(data, (byte) (seed + i));
+                            dc.setData(data, key);
+                        }
+                        else if (op == 1)
+                        {
+                            dc.removeData(key);
+                        }
+                        else
+                        {
+                            byte[] data = dc.getData(key);
+                            if (data != null && !isUniform(data))
+                            {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+                catch (Exception ex)
+                {
+                    failures.incrementAndGet();
+                }
+                finally
+                {
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+
+        startLatch.countDown();
+        Assert.assertTrue("Expect all threads to finish", doneLatch.await(60, TimeUnit.SECONDS));
+        Assert.assertEquals("Expect no torn reads or exceptions", 0, failures.get());
+
+        for (String key : keys)
+        {
+            byte[] data = dc.getData(key);
+            Assert.assertEquals("Expect data and meta data to agree", data != null, dc.getMetaData(key).containsKey(UUDataCache.MetaData.Timestamp));
+
+            if (data != null)
+            {
+                Assert.assertTrue("Expect final data to be intact", isUniform(data));
+            }
+        }
+
+        dc.setChecksumVerificationEnabled(false);
+    }
+
+    private static boolean isUniform(@NonNull final byte[] data)
+    {
+        for (byte b : data)
+        {
+            if (b != data[0])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Test
+    public void test_0019_getDataIgnoringExpiration() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        byte[] data = UURandom.randomBytes(256);
+        dc.setData(data, TEST_FILE);
+        Assert.assertTrue(dc.getTimestamp(TEST_FILE) > 0);
+
+        // Data only expires once more than the interval has passed
+        dc.setDataExpirationInterval(0);
+        Thread.sleep(10);
+        Assert.assertTrue(dc.isDataExpired(TEST_FILE));
+        Assert.assertArrayEquals("Expect expired data to be returned", data, dc.getDataIgnoringExpiration(TEST_FILE));
+        Assert.assertTrue("Expect expired data to be left in place", dc.doesDataExist(TEST_FILE));
+
+        Assert.assertNull("Expect getData to remove expired data", dc.getData(TEST_FILE));
+        Assert.assertFalse(dc.doesDataExist(TEST_FILE));
+
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+    }
+
+    // Trims run on the cache's worker, which handles tasks in order, so once a task queued after
+    // the writes has run, any trim they scheduled has finished
+    private static void waitForWorker(@NonNull final UUDataCache dc) throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        dc.purgeExpiredDataInBackground(1000, report -> latch.countDown());
+        Assert.assertTrue("Expect the worker to finish", latch.await(10, TimeUnit.SECONDS));
+    }
 }
@@ -8,7 +8,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 @RunWith(AndroidJUnit4.class)
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -100,4 +105,64 @@ public class UUHttpTests
         latch.await();
     }
 
+
+    @Test
+    public void test_0002_responseHeaderLookupIgnoresCase() throws Exception
+    {
+        HashMap<String, List<String>> headers = new HashMap<>();
+        headers.put("etag", Collections.singletonList("\"abc123\""));
+        headers.put("Last-Modified", Collections.singletonList("Wed, 21 Oct 2015 07:28:00 GMT"));
+
+        UUHttpResponse response = new UUHttpResponse();
+        response.setResponseHeaders(headers);
+
+        Assert.assertEquals("\"abc123\"", response.getResponseHeader("ETag"));
+        Assert.assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", response.getResponseHeader("last-modified"));
+        Assert.assertNull(response.getResponseHeader("Cache-Control"));
+    }
+
+    @Test
+    public void test_0003_perHostLimit() throws Exception
+    {
+        final ArrayList<Runnable> submitted = new ArrayList<>();
+        Executor original = UUHttp.getExecutor();
+
+        UUHttp.setExecutor(submitted::add);
+        UUHttp.setMaxRequestsPerHost(1);
+
+        try
+        {
+            final CountDownLatch latch = new CountDownLatch(3);
+
+            UUHttp.get("http://this.is.a.fake.url/a", null, response -> latch.countDown());
+            UUHttp.get("http://this.is.a.fake.url/b", null, response -> latch.countDown());
+            UUHttp.get("http://another.fake.url/c", null, response -> latch.countDown());
+
+            UUHttp.Metrics metrics = UUHttp.getMetrics();
+            Assert.assertEquals("Expect one request per host to reach the executor", 2, submitted.size());
+            Assert.assertEquals(2, metrics.queuedRequests);
+            Assert.assertEquals("Expect the second request to the same host to wait", 1, metrics.hostLimitedRequests);
+
+            // Finishing the first request releases the one waiting on its host
+            submitted.remove(0).run();
+            Assert.assertEquals(2, submitted.size());
+            Assert.assertEquals(0, UUHttp.getMetrics().hostLimitedRequests);
+
+            while (!submitted.isEmpty())
+            {
+                submitted.remove(0).run();
+            }
+
+            latch.await();
+
+            metrics = UUHttp.getMetrics();
+            Assert.assertEquals(0, metrics.queuedRequests);
+            Assert.assertEquals(0, metrics.activeRequests);
+        }
+        finally
+        {
+            UUHttp.setMaxRequestsPerHost(0);
+            UUHttp.setExecutor(original);
+        }
+    }
 }
@@ -10,9 +10,12 @@ import android.test.ApplicationTestCase;
 
 import junit.framework.Assert;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import uu.toolbox.core.UURandom;
 import uu.toolbox.data.UUDataCache;
 
 public class UURemoteDataTests extends ApplicationTestCase<Application>
@@ -148,4 +151,323 @@ public class UURemoteDataTests extends ApplicationTestCase<Application>
         byte[] data = UURemoteData.sharedInstance().getData(key);
         Assert.assertNotNull("Expect data after download to not be null", data);
     }
+
+    public void test_0003_cancelQueuedRequests() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        rd.setMaxDownloadRequests(0);
+
+        try
+        {
+            final String tag = "test_0003";
+            final String keyA = "http://this.is.a.fake.url/queued_a.jpg";
+            final String keyB = "http://this.is.a.fake.url/queued_b.jpg";
+            final String keyC = "http://this.is.a.fake.url/queued_c.jpg";
+
+            Assert.assertNull(rd.getData(keyA, UURemoteData.Priority.PREFETCH, tag));
+            Assert.assertNull(rd.getData(keyB, UURemoteData.Priority.PREFETCH, tag));
+            Assert.assertNull(rd.getData(keyC, UURemoteData.Priority.BACKGROUND, tag));
+
+            Assert.assertTrue("Expect request to be queued", rd.isDownloadQueued(keyA));
+            Assert.assertTrue("Expect cancel to remove a queued request", rd.cancel(keyA));
+            Assert.assertFalse("Expect cancelled request to not be queued", rd.isDownloadQueued(keyA));
+            Assert.assertFalse("Expect cancel of a missing request to do nothing", rd.cancel(keyA));
+
+            Assert.assertEquals("Expect remaining tagged requests to be cancelled", 2, rd.cancelTag(tag));
+            Assert.assertFalse(rd.isDownloadQueued(keyB));
+            Assert.assertFalse(rd.isDownloadQueued(keyC));
+        }
+        finally
+        {
+            rd.clearPendingQueue();
+            rd.setMaxDownloadRequests(5);
+        }
+    }
+
+    public void test_0004_listenersShareOneDownload() throws Exception
+    {
+        final String key = TEST_URL;
+        UUDataCache.sharedInstance().removeData(key);
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final byte[][] results = new byte[2][];
+
+        byte[] first = UURemoteData.sharedInstance().getData(key, data ->
+        {
+            results[0] = data;
+            latch.countDown();
+        });
+
+        byte[] second = UURemoteData.sharedInstance().getData(key, data ->
+        {
+            results[1] = data;
+            latch.countDown();
+        });
+
+        Assert.assertNull("Expect immediate data return to be null when object does not exist in cache", first);
+        Assert.assertNull("Expect immediate data return to be null when object does not exist in cache", second);
+
+        latch.await();
+
+        Assert.assertNotNull("Expect first listener to receive data", results[0]);
+        Assert.assertNotNull("Expect second listener to receive data", results[1]);
+        Assert.assertTrue("Expect both listeners to receive the same download", Arrays.equals(results[0], results[1]));
+    }
+
+    public void test_0005_cancelNotifiesListeners() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        rd.setMaxDownloadRequests(0);
+
+        try
+        {
+            final String key = "http://this.is.a.fake.url/cancelled.jpg";
+            final CountDownLatch latch = new CountDownLatch(1);
+            final boolean[] receivedNull = new boolean[1];
+
+            rd.getData(key, data ->
+            {
+                receivedNull[0] = (data == null);
+                latch.countDown();
+            });
+
+            Assert.assertTrue(rd.cancel(key));
+
+            latch.await();
+            Assert.assertTrue("Expect cancelled listener to receive null", receivedNull[0]);
+        }
+        finally
+        {
+            rd.setMaxDownloadRequests(5);
+        }
+    }
+
+    public void test_0006_diagnostics() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        rd.setMaxDownloadRequests(0);
+        rd.resetLockStatistics();
+
+        try
+        {
+            final String keyA = "http://this.is.a.fake.url/diagnostics_a.jpg";
+            final String keyB = "http://this.is.a.fake.url/diagnostics_b.jpg";
+
+            rd.getData(keyA, UURemoteData.Priority.BACKGROUND, null);
+            rd.getData(keyB, UURemoteData.Priority.VISIBLE, null);
+
+            UURemoteData.Diagnostics diagnostics = rd.getDiagnostics();
+            Assert.assertEquals(2, diagnostics.queuedKeys.size());
+            Assert.assertEquals("Expect visible request to be first", keyB, diagnostics.queuedKeys.get(0));
+            Assert.assertEquals(keyA, diagnostics.queuedKeys.get(1));
+            Assert.assertTrue("Expect lock holds to be measured", diagnostics.lockHoldCount > 0);
+            Assert.assertTrue(diagnostics.lockHoldMaxNanos <= diagnostics.lockHoldTotalNanos);
+        }
+        finally
+        {
+            rd.clearPendingQueue();
+            rd.setMaxDownloadRequests(5);
+        }
+    }
+
+    public void test_0007_staleWhileRevalidate() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        UUDataCache dc = UUDataCache.sharedInstance();
+        long expiration = dc.getDataExpirationInterval();
+
+        final String key = "http://this.is.a.fake.url/stale.jpg";
+        byte[] data = UURandom.randomBytes(256);
+
+        rd.setMaxDownloadRequests(0);
+        rd.setStaleWhileRevalidateEnabled(true);
+
+        try
+        {
+            dc.setData(data, key);
+            dc.setDataExpirationInterval(0);
+            Thread.sleep(10);
+
+            byte[] stale = rd.getData(key);
+            Assert.assertNotNull("Expect stale data to be returned immediately", stale);
+            Assert.assertTrue(Arrays.equals(data, stale));
+            Assert.assertTrue("Expect a refresh to be queued", rd.isDownloadQueued(key));
+
+            rd.setMaxStaleAge(1);
+            Thread.sleep(10);
+            rd.clearPendingQueue();
+
+            Assert.assertNull("Expect data past the max stale age to not be returned", rd.getData(key));
+        }
+        finally
+        {
+            rd.clearPendingQueue();
+            rd.setStaleWhileRevalidateEnabled(false);
+            rd.setMaxStaleAge(UURemoteData.DEFAULT_MAX_STALE_AGE);
+            rd.setMaxDownloadRequests(5);
+            dc.setDataExpirationInterval(expiration);
+        }
+    }
+
+    public void test_0008_failedDownloadIsDeferred() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        rd.clearLastFailureTimes();
+
+        try
+        {
+            final String key = "http://this.is.a.fake.url/deferred.jpg";
+            final CountDownLatch latch = new CountDownLatch(1);
+
+            rd.getData(key, data -> latch.countDown());
+            latch.await();
+
+            Assert.assertNull(rd.getData(key, UURemoteData.Priority.VISIBLE, null));
+
+            UURemoteData.Diagnostics diagnostics = rd.getDiagnostics();
+            Assert.assertTrue("Expect failed request to wait for a retry", diagnostics.deferredKeys.contains(key));
+            Assert.assertFalse("Expect failed request to not be in the queue", diagnostics.queuedKeys.contains(key));
+            Assert.assertEquals(1, diagnostics.failureCount);
+            Assert.assertTrue(rd.isDownloadQueued(key));
+        }
+        finally
+        {
+            rd.clearPendingQueue();
+            rd.clearLastFailureTimes();
+        }
+    }
+
+    public void test_0009_streamingDownload() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        final String key = TEST_URL;
+        UUDataCache.sharedInstance().removeData(key);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final byte[][] result = new byte[1][];
+        final long[] progress = new long[1];
+
+        rd.setStreamingDownloadsEnabled(true);
+        rd.setDownloadProgressDelegate((k, bytesDownloaded, contentLength) -> progress[0] = bytesDownloaded);
+
+        try
+        {
+            rd.getData(key, data ->
+            {
+                result[0] = data;
+                latch.countDown();
+            });
+
+            latch.await();
+
+            Assert.assertNotNull("Expect listener to receive streamed data", result[0]);
+            Assert.assertEquals("Expect progress to reach the full length", result[0].length, progress[0]);
+            Assert.assertTrue(Arrays.equals(result[0], UUDataCache.sharedInstance().getData(key)));
+        }
+        finally
+        {
+            rd.setStreamingDownloadsEnabled(false);
+            rd.setDownloadProgressDelegate(null);
+        }
+    }
+
+    public void test_0010_prefetch() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        rd.setMaxDownloadRequests(0);
+
+        try
+        {
+            final String cachedKey = "http://this.is.a.fake.url/prefetch_cached.jpg";
+            final String keyA = "http://this.is.a.fake.url/prefetch_a.jpg";
+            final String keyB = "http://this.is.a.fake.url/prefetch_b.jpg";
+            final String evictedKey = "http://this.is.a.fake.url/prefetch_evicted.jpg";
+
+            UUDataCache.sharedInstance().setData(UURandom.randomBytes(64), cachedKey);
+
+            // Meta data is left behind, but without its file the key is not cached
+            UUDataCache.sharedInstance().setData(UURandom.randomBytes(64), evictedKey);
+            Assert.assertTrue(UUDataCache.sharedInstance().getDiskFileName(evictedKey).delete());
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            final int[] queued = new int[1];
+
+            String tag = rd.prefetch(Arrays.asList(cachedKey, keyA, keyB, keyA, evictedKey, "not a url"), UURemoteData.Priority.BACKGROUND, 0, 0, count ->
+            {
+                queued[0] = count;
+                latch.countDown();
+            });
+
+            latch.await();
+
+            UURemoteData.Diagnostics diagnostics = rd.getDiagnostics();
+            Assert.assertEquals("Expect only uncached keys to be queued once", 3, queued[0]);
+            Assert.assertEquals(3, diagnostics.queuedKeys.size());
+            Assert.assertEquals("Expect prefetch order to be kept", keyA, diagnostics.queuedKeys.get(0));
+            Assert.assertEquals(keyB, diagnostics.queuedKeys.get(1));
+            Assert.assertEquals(evictedKey, diagnostics.queuedKeys.get(2));
+
+            Assert.assertEquals(3, rd.cancelTag(tag));
+            Assert.assertFalse(rd.isDownloadQueued(keyA));
+        }
+        finally
+        {
+            rd.clearPendingQueue();
+            rd.setMaxDownloadRequests(5);
+        }
+    }
+
+    public void test_0011_prefetchTimeBudget() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        rd.setMaxDownloadRequests(0);
+
+        try
+        {
+            final String key = "http://this.is.a.fake.url/prefetch_timed.jpg";
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            rd.prefetch(Arrays.asList(key), UURemoteData.Priority.BACKGROUND, 0, 100, count -> latch.countDown());
+            latch.await();
+
+            Assert.assertTrue(rd.isDownloadQueued(key));
+
+            Thread.sleep(500);
+            Assert.assertFalse("Expect prefetch to be cancelled when its time budget runs out", rd.isDownloadQueued(key));
+        }
+        finally
+        {
+            rd.clearPendingQueue();
+            rd.setMaxDownloadRequests(5);
+        }
+    }
+
+    public void test_0012_requestOutlivesPrefetchTag() throws Exception
+    {
+        UURemoteData rd = UURemoteData.sharedInstance();
+        rd.setMaxDownloadRequests(0);
+
+        try
+        {
+            final String key = "http://this.is.a.fake.url/prefetch_then_visible.jpg";
+
+            final CountDownLatch queuedLatch = new CountDownLatch(1);
+            String tag = rd.prefetch(Arrays.asList(key), UURemoteData.Priority.BACKGROUND, 0, 0, count -> queuedLatch.countDown());
+            queuedLatch.await();
+
+            Assert.assertTrue(rd.isDownloadQueued(key));
+
+            final CountDownLatch listenerLatch = new CountDownLatch(1);
+            Assert.assertNull(rd.getData(key, data -> listenerLatch.countDown()));
+
+            Assert.assertEquals("Expect the visible request to no longer belong to the prefetch", 0, rd.cancelTag(tag));
+            Assert.assertTrue("Expect the visible request to stay queued", rd.isDownloadQueued(key));
+            Assert.assertFalse("Expect the listener to not be notified", listenerLatch.await(500, TimeUnit.MILLISECONDS));
+        }
+        finally
+        {
+            rd.clearPendingQueue();
+            rd.setMaxDownloadRequests(5);
+        }
+    }
 }
@@ -6,14 +6,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.test.ApplicationTestCase;
 
 import junit.framework.Assert;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
 
+import uu.toolbox.core.UUFile;
 import uu.toolbox.data.UUDataCache;
 
 public class UURemoteImageTests extends ApplicationTestCase<Application>
@@ -152,4 +156,116 @@ public class UURemoteImageTests extends ApplicationTestCase<Application>
         byte[] data = UURemoteData.sharedInstance().getData(key);
         Assert.assertNotNull("Expect data after download to not be null", data);
     }*/
+
+    public void test_0003_resizedVariantIsSaved() throws Exception
+    {
+        final String key = "http://this.is.a.fake.url/variant.jpg";
+        final String variantKey = key + "_w100_w100";
+
+        saveOriginal(key, 800, 800);
+        UURemoteImage.sharedInstance().clearVariantCache();
+
+        decodeAndWait(key, 100, 100);
+
+        File variantFile = UURemoteImage.sharedInstance().getVariantFile(key, variantKey);
+        Assert.assertTrue("Expect resized variant to be saved", variantFile.exists());
+        Assert.assertNotNull("Expect original size to be recorded", UURemoteImage.sharedInstance().imageSize(key));
+        Assert.assertFalse("Expect variant to not be stored in the data cache", UUDataCache.sharedInstance().doesDataExist(variantKey));
+
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(variantFile.getAbsolutePath(), opt);
+        Assert.assertEquals(100, opt.outWidth);
+        Assert.assertEquals(100, opt.outHeight);
+    }
+
+    public void test_0004_calculateSampleSize() throws Exception
+    {
+        Assert.assertEquals("Expect no sampling when the image is smaller than the target", 1, UURemoteImage.calculateSampleSize(50, 50, 100, 100));
+        Assert.assertEquals("Expect no sampling when the ratio is under two", 1, UURemoteImage.calculateSampleSize(199, 199, 100, 100));
+        Assert.assertEquals(2, UURemoteImage.calculateSampleSize(200, 200, 100, 100));
+        Assert.assertEquals("Expect a power of two", 4, UURemoteImage.calculateSampleSize(700, 700, 100, 100));
+        Assert.assertEquals("Expect the tighter dimension to decide", 2, UURemoteImage.calculateSampleSize(1000, 250, 100, 100));
+        Assert.assertEquals("Expect an invalid target to not sample", 1, UURemoteImage.calculateSampleSize(1000, 1000, 0, 100));
+    }
+
+    public void test_0005_variantIsReusedAfterMemoryEviction() throws Exception
+    {
+        final String key = "http://this.is.a.fake.url/variant_reuse.jpg";
+        final String variantKey = key + "_w100_w100";
+
+        saveOriginal(key, 800, 800);
+        UURemoteImage.sharedInstance().clearVariantCache();
+
+        decodeAndWait(key, 100, 100);
+        Assert.assertTrue("Expect resized variant to be saved", UURemoteImage.sharedInstance().getVariantFile(key, variantKey).exists());
+
+        // Corrupt the original in place, so its cache timestamp is unchanged and only the variant
+        // can satisfy the next decode
+        UUFile.writeFile(UUDataCache.sharedInstance().getDiskFileName(key), new byte[] { 1, 2, 3, 4 });
+        UURemoteImage.sharedInstance().clearCache();
+
+        decodeAndWait(key, 100, 100);
+
+        Bitmap bitmap = UURemoteImage.sharedInstance().getImage(key, 100, 100, true);
+        Assert.assertNotNull("Expect the second decode to be served from the variant", bitmap);
+        Assert.assertEquals(100, bitmap.getWidth());
+        Assert.assertEquals(100, bitmap.getHeight());
+    }
+
+    public void test_0006_replacedOriginalDoesNotUseOldVariant() throws Exception
+    {
+        final String key = "http://this.is.a.fake.url/variant_replaced.jpg";
+
+        saveOriginal(key, 800, 800);
+        UURemoteImage.sharedInstance().clearVariantCache();
+
+        decodeAndWait(key, 100, 100);
+
+        // Replacing the original through the data cache gives it a new cache timestamp
+        Thread.sleep(10);
+        UUDataCache.sharedInstance().setData(new byte[] { 1, 2, 3, 4 }, key);
+        UURemoteImage.sharedInstance().clearCache();
+
+        decodeAndWait(key, 100, 100);
+
+        Assert.assertNull("Expect the old variant to not be served", UURemoteImage.sharedInstance().getImage(key, 100, 100, true));
+    }
+
+    private void saveOriginal(final String key, final int width, final int height)
+    {
+        Bitmap original = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        original.setHasAlpha(false);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        original.compress(Bitmap.CompressFormat.JPEG, 90, bos);
+        UUDataCache.sharedInstance().setData(bos.toByteArray(), key);
+    }
+
+    private void decodeAndWait(final String key, final int width, final int height) throws Exception
+    {
+        countdownLatch = new CountDownLatch(1);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(UURemoteData.Notifications.DataDownloaded);
+
+        LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(getContext());
+        BroadcastReceiver br = new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                if (key.equals(intent.getStringExtra(UURemoteData.NotificationKeys.RemotePath)))
+                {
+                    countdownLatch.countDown();
+                }
+            }
+        };
+
+        lbm.registerReceiver(br, filter);
+
+        Assert.assertNull(UURemoteImage.sharedInstance().getImage(key, width, height, true));
+        countdownLatch.await();
+        lbm.unregisterReceiver(br);
+    }
 }
@@ -0,0 +1,315 @@
+package uu.toolbox.core;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import uu.toolbox.logging.UULog;
+
+/**
+ * UUBitmapPool
+ *
+ * Useful Utilities - A pool of unused mutable bitmaps, bucketed by allocation size, that can be
+ * handed to BitmapFactory.Options.inBitmap so decodes reuse memory instead of allocating.
+ *
+ * Only put bitmaps in the pool that nothing else is still drawing, since a pooled bitmap will be
+ * overwritten by the next decode that reuses it.
+ */
+@SuppressWarnings("unused")
+public class UUBitmapPool
+{
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Constants
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // A reused bitmap may be at most this many times bigger than the decode needs
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Public Interfaces
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Point in time pool statistics
+     */
+    public static class Stats
+    {
+        public long hitCount;
+        public long missCount;
+        public long putCount;
+        public long evictionCount;
+        public long currentSize;
+        public long maxSize;
+        public int bitmapCount;
+
+        public float getHitRate()
+        {
+            long total = hitCount + missCount;
+            return (total > 0) ? ((float)hitCount / (float)total) : 0;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Data Members
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> buckets = new TreeMap<>();
+    private final long maxSize;
+    private long currentSize = 0;
+    private int bitmapCount = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long putCount = 0;
+    private long evictionCount = 0;
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Construction
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a bitmap pool
+     *
+     * @param maxSize max total allocation size of pooled bitmaps, in bytes
+     */
+    public UUBitmapPool(final long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds an unused bitmap to the pool.  Immutable, recycled and oversized bitmaps are ignored.
+     *
+     * @param bitmap the bitmap
+     * @return true if the bitmap was pooled
+     */
+    public synchronized boolean put(@Nullable final Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+        {
+            return false;
+        }
+
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxSize)
+        {
+            return false;
+        }
+
+        ArrayList<Bitmap> bucket = buckets.get(size);
+        if (bucket == null)
+        {
+            bucket = new ArrayList<>();
+            buckets.put(size, bucket);
+        }
+
+        bucket.add(bitmap);
+        currentSize += size;
+        ++bitmapCount;
+        ++putCount;
+
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * Removes a pooled bitmap big enough to hold an image of the given size
+     *
+     * @param width image width
+     * @param height image height
+     * @param config image config
+     * @return a bitmap to reuse, or null if the pool has none that fit
+     */
+    @Nullable
+    public synchronized Bitmap get(final int width, final int height, @Nullable final Bitmap.Config config)
+    {
+        long required = (long)width * (long)height * bytesPerPixel(config);
+
+        Map.Entry<Integer, ArrayList<Bitmap>> entry = (required > 0 && required <= Integer.MAX_VALUE) ? buckets.ceilingEntry((int)required) : null;
+        if (entry == null || entry.getKey() > required * MAX_SIZE_MULTIPLE)
+        {
+            ++missCount;
+            return null;
+        }
+
+        Bitmap bitmap = removeFromBucket(entry.getKey(), entry.getValue());
+        ++hitCount;
+        return bitmap;
+    }
+
+    /**
+     * Sets up decode options to reuse a pooled bitmap.  The options must already have outWidth,
+     * outHeight and inSampleSize set.
+     *
+     * @param opt decode options
+     */
+    public void prepareOptions(@NonNull final BitmapFactory.Options opt)
+    {
+        int sampleSize = Math.max(1, opt.inSampleSize);
+
+        // Round up, so the reused bitmap is never too small
+        int width = (opt.outWidth + sampleSize - 1) / sampleSize;
+        int height = (opt.outHeight + sampleSize - 1) / sampleSize;
+
+        opt.inMutable = true;
+        opt.inBitmap = get(width, height, opt.inPreferredConfig);
+    }
+
+    /**
+     * Decodes a file, reusing a pooled bitmap when one fits.  The options must already have
+     * outWidth, outHeight and inSampleSize set.
+     *
+     * @param path file path
+     * @param opt decode options
+     * @return the decoded bitmap, or null if decoding failed
+     */
+    @Nullable
+    public Bitmap decodeFile(@NonNull final String path, @NonNull final BitmapFactory.Options opt)
+    {
+        prepareOptions(opt);
+
+        try
+        {
+            return BitmapFactory.decodeFile(path, opt);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            UULog.debug(getClass(), "decodeFile", "Unable to reuse bitmap, decoding without it: " + ex.getMessage());
+            return decodeWithoutReuse(opt, () -> BitmapFactory.decodeFile(path, opt));
+        }
+    }
+
+    /**
+     * Decodes a byte array, reusing a pooled bitmap when one fits.  The options must already have
+     * outWidth, outHeight and inSampleSize set.
+     *
+     * @param data encoded image
+     * @param opt decode options
+     * @return the decoded bitmap, or null if decoding failed
+     */
+    @Nullable
+    public Bitmap decodeByteArray(@NonNull final byte[] data, @NonNull final BitmapFactory.Options opt)
+    {
+        prepareOptions(opt);
+
+        try
+        {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            UULog.debug(getClass(), "decodeByteArray", "Unable to reuse bitmap, decoding without it: " + ex.getMessage());
+            return decodeWithoutReuse(opt, () -> BitmapFactory.decodeByteArray(data, 0, data.length, opt));
+        }
+    }
+
+    public synchronized void clear()
+    {
+        trimToSize(0);
+    }
+
+    @NonNull
+    public synchronized Stats getStats()
+    {
+        Stats stats = new Stats();
+        stats.hitCount = hitCount;
+        stats.missCount = missCount;
+        stats.putCount = putCount;
+        stats.evictionCount = evictionCount;
+        stats.currentSize = currentSize;
+        stats.maxSize = maxSize;
+        stats.bitmapCount = bitmapCount;
+        return stats;
+    }
+
+    public synchronized void resetStats()
+    {
+        hitCount = 0;
+        missCount = 0;
+        putCount = 0;
+        evictionCount = 0;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Private Methods
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private interface DecodeBlock
+    {
+        @Nullable
+        Bitmap decode();
+    }
+
+    @Nullable
+    private Bitmap decodeWithoutReuse(@NonNull final BitmapFactory.Options opt, @NonNull final DecodeBlock block)
+    {
+        // The rejected bitmap was not written to, so it can go back in the pool
+        put(opt.inBitmap);
+        opt.inBitmap = null;
+
+        try
+        {
+            return block.decode();
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "decodeWithoutReuse", ex);
+            return null;
+        }
+    }
+
+    // Must be called while holding the lock
+    private void trimToSize(final long size)
+    {
+        while (currentSize > size && !buckets.isEmpty())
+        {
+            // Evict from the largest bucket first, frees the most memory per eviction
+            Map.Entry<Integer, ArrayList<Bitmap>> entry = buckets.lastEntry();
+            Bitmap bitmap = removeFromBucket(entry.getKey(), entry.getValue());
+            bitmap.recycle();
+            ++evictionCount;
+        }
+    }
+
+    // Must be called while holding the lock
+    @NonNull
+    private Bitmap removeFromBucket(final int size, @NonNull final ArrayList<Bitmap> bucket)
+    {
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        if (bucket.isEmpty())
+        {
+            buckets.remove(size);
+        }
+
+        currentSize -= size;
+        --bitmapCount;
+        return bitmap;
+    }
+
+    private static int bytesPerPixel(@Nullable final Bitmap.Config config)
+    {
+        if (config == Bitmap.Config.ALPHA_8)
+        {
+            return 1;
+        }
+        else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+        {
+            return 2;
+        }
+        else if (config != null && "RGBA_F16".equals(config.name()))
+        {
+            return 8;
+        }
+
+        return 4;
+    }
+}
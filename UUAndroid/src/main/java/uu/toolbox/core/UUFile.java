@@ -9,6 +9,8 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import uu.toolbox.logging.UULog;
 
@@ -74,6 +76,41 @@ public class UUFile
         return result;
     }
 
+    /**
+     * Maps the entire contents of a file into memory as a read only buffer.  The file data is
+     * paged in by the OS on demand rather than copied onto the heap.
+     *
+     * @param file the file to map
+     * @return a read only buffer over the file, or null if the file does not exist or cannot be mapped
+     */
+    @Nullable
+    public static MappedByteBuffer mapFile(@NonNull final File file)
+    {
+        FileInputStream fis = null;
+        MappedByteBuffer result = null;
+
+        try
+        {
+            if (file.exists())
+            {
+                fis = new FileInputStream(file);
+                FileChannel channel = fis.getChannel();
+                result = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(UUFile.class, "mapFile", ex);
+            result = null;
+        }
+        finally
+        {
+            closeStream(fis);
+        }
+
+        return result;
+    }
+
     /**
      * Writes data to a file, overwriting its entire contents
      *
@@ -120,6 +157,55 @@ public class UUFile
         }
     }
 
+    /**
+     * Writes data to a temporary file and then renames it over the destination, so the
+     * destination is either untouched or contains the complete data, even if the process dies
+     * part way through the write.
+     *
+     * @param file the file to write
+     * @param tempFile scratch file to write to first, must be on the same file system as file
+     * @param data the data to write
+     *
+     * @return boolean indicating success or failure
+     */
+    public static boolean writeFileAtomically(@NonNull final File file, @NonNull final File tempFile, @NonNull byte[] data)
+    {
+        FileOutputStream fos = null;
+        boolean success = false;
+
+        try
+        {
+            fos = new FileOutputStream(tempFile);
+            fos.write(data);
+            fos.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            success = tempFile.renameTo(file);
+            if (!success)
+            {
+                UULog.warn(UUFile.class, "writeFileAtomically", "Unable to rename " + tempFile.getName() + " to " + file.getName());
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(UUFile.class, "writeFileAtomically", ex);
+            success = false;
+        }
+        finally
+        {
+            closeStream(fos);
+
+            if (!success)
+            {
+                deleteFile(tempFile);
+            }
+        }
+
+        return success;
+    }
+
     /**
      * Copies a file
      *
@@ -0,0 +1,319 @@
+package uu.toolbox.core;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import uu.toolbox.logging.UULog;
+
+/**
+ * UUMemoryBudget
+ *
+ * Useful Utilities - Splits one in memory byte budget between caches, and trims all of them
+ * together when the system reports memory pressure.
+ *
+ * Each cache registers with a share, and its limit is its share of the total budget.  Clients are
+ * held weakly, so a cache that goes away does not need to unregister.
+ */
+@SuppressWarnings("unused")
+public class UUMemoryBudget
+{
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Constants
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Fraction of the max VM heap shared by all registered caches
+    private static final int DEFAULT_BUDGET_DIVISOR = 6;
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Public Interfaces
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A cache whose in memory size is managed by the budget
+     */
+    public interface Client
+    {
+        /**
+         * Gets the number of bytes currently held
+         *
+         * @return size in bytes
+         */
+        long getMemoryUsage();
+
+        /**
+         * Sets the maximum number of bytes the client may hold, evicting if needed
+         *
+         * @param maxBytes size in bytes
+         */
+        void setMemoryLimit(final long maxBytes);
+
+        /**
+         * Evicts until no more than the target is held, without changing the limit
+         *
+         * @param targetBytes size in bytes
+         */
+        void trimMemory(final long targetBytes);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Singleton Interface
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static UUMemoryBudget theSharedInstance;
+
+    public static synchronized void init(@NonNull final Context context)
+    {
+        theSharedInstance = new UUMemoryBudget(Runtime.getRuntime().maxMemory() / DEFAULT_BUDGET_DIVISOR);
+        theSharedInstance.registerComponentCallbacks(context);
+    }
+
+    public static synchronized UUMemoryBudget sharedInstance()
+    {
+        return theSharedInstance;
+    }
+
+    /**
+     * Gets the shared budget, creating it if needed.  Caches use this so that two of them created
+     * at the same time cannot each create a budget.
+     *
+     * @param context a context
+     * @return the shared budget
+     */
+    @NonNull
+    public static synchronized UUMemoryBudget getOrInit(@NonNull final Context context)
+    {
+        if (theSharedInstance == null)
+        {
+            init(context);
+        }
+
+        return theSharedInstance;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Data Members
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final WeakHashMap<Client, Float> clients = new WeakHashMap<>();
+    private long totalBudget;
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Construction
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public UUMemoryBudget(final long totalBudget)
+    {
+        this.totalBudget = totalBudget;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Adds a client to the budget and rebalances every client's limit
+     *
+     * @param client the client
+     * @param share relative share of the budget, compared to other clients
+     */
+    public void register(@NonNull final Client client, final float share)
+    {
+        synchronized (this)
+        {
+            clients.put(client, Math.max(0, share));
+        }
+
+        rebalance();
+    }
+
+    public void unregister(@NonNull final Client client)
+    {
+        synchronized (this)
+        {
+            clients.remove(client);
+        }
+
+        rebalance();
+    }
+
+    public synchronized long getTotalBudget()
+    {
+        return totalBudget;
+    }
+
+    /**
+     * Sets the number of bytes shared by all clients.  Each client's limit changes in proportion.
+     *
+     * @param totalBudget size in bytes
+     */
+    public void setTotalBudget(final long totalBudget)
+    {
+        synchronized (this)
+        {
+            this.totalBudget = totalBudget;
+        }
+
+        rebalance();
+    }
+
+    /**
+     * Gets the limit a client is given from the total budget
+     *
+     * @param client the client
+     * @return size in bytes, or zero if the client is not registered
+     */
+    public synchronized long getBudget(@NonNull final Client client)
+    {
+        Float share = clients.get(client);
+        float totalShares = getTotalShares();
+
+        if (share == null || totalShares <= 0)
+        {
+            return 0;
+        }
+
+        return (long)(totalBudget * (share / totalShares));
+    }
+
+    /**
+     * Gets the limit a new client would be given if it registered with a share, so a cache can
+     * be created at its final size
+     *
+     * @param share relative share of the budget, compared to other clients
+     * @return size in bytes
+     */
+    public synchronized long getBudgetForShare(final float share)
+    {
+        float clientShare = Math.max(0, share);
+        float totalShares = getTotalShares() + clientShare;
+
+        if (totalShares <= 0)
+        {
+            return 0;
+        }
+
+        return (long)(totalBudget * (clientShare / totalShares));
+    }
+
+    /**
+     * Gets the number of bytes held by all clients
+     *
+     * @return size in bytes
+     */
+    public long getTotalUsage()
+    {
+        long usage = 0;
+
+        for (Client client : listClients())
+        {
+            usage += client.getMemoryUsage();
+        }
+
+        return usage;
+    }
+
+    /**
+     * Trims every client in response to a ComponentCallbacks2 trim level
+     *
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* constants
+     */
+    public void trimMemory(final int level)
+    {
+        float retained = retainedFractionForTrimLevel(level);
+        if (retained >= 1.0f)
+        {
+            return;
+        }
+
+        UULog.debug(getClass(), "trimMemory", "Trimming caches to " + retained + " of their budget for level " + level);
+
+        for (Client client : listClients())
+        {
+            client.trimMemory((long)(getBudget(client) * retained));
+        }
+    }
+
+    /**
+     * Gets how much of its budget a cache should keep for a trim level.  Moderate and worse
+     * pressure, or critical pressure while running, empties caches.  Low pressure halves them.
+     *
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* constants
+     * @return a fraction between zero and one
+     */
+    public static float retainedFractionForTrimLevel(final int level)
+    {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+            level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+        {
+            return 0.0f;
+        }
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+        {
+            return 0.5f;
+        }
+
+        return 1.0f;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Private Methods
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void registerComponentCallbacks(@NonNull final Context context)
+    {
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2()
+        {
+            @Override
+            public void onTrimMemory(int level)
+            {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig)
+            {
+
+            }
+
+            @Override
+            public void onLowMemory()
+            {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+    }
+
+    private void rebalance()
+    {
+        for (Client client : listClients())
+        {
+            client.setMemoryLimit(getBudget(client));
+        }
+    }
+
+    // Clients are called outside the lock, since they take their own locks to evict
+    @NonNull
+    private synchronized ArrayList<Client> listClients()
+    {
+        return new ArrayList<>(clients.keySet());
+    }
+
+    // Must be called while holding the lock
+    private float getTotalShares()
+    {
+        float total = 0;
+
+        for (Map.Entry<Client, Float> entry : clients.entrySet())
+        {
+            total += entry.getValue();
+        }
+
+        return total;
+    }
+}
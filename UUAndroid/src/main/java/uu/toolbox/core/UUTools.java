@@ -61,6 +61,15 @@ public final class UUTools
 	}
 
 	public static final Bitmap loadAndScaleBitmap(final String filePath, final int targetWidth, final int targetHeight)
+	{
+		return loadAndScaleBitmap(filePath, targetWidth, targetHeight, null);
+	}
+
+	/**
+	 * Loads and crops a bitmap, reusing memory from a bitmap pool when one is given.  The
+	 * intermediate decoded bitmap is returned to the pool once it has been cropped.
+	 */
+	public static final Bitmap loadAndScaleBitmap(final String filePath, final int targetWidth, final int targetHeight, final UUBitmapPool bitmapPool)
 	{
 		BitmapFactory.Options bmOptions = new BitmapFactory.Options();
 		bmOptions.inJustDecodeBounds = true;
@@ -76,11 +85,26 @@ public final class UUTools
 
 		bmOptions.inJustDecodeBounds = false;
 		bmOptions.inSampleSize = scaleFactor;
-		bmOptions.inPurgeable = true;
 
-		Bitmap bitmap = BitmapFactory.decodeFile(filePath, bmOptions);
+		Bitmap bitmap;
+		if (bitmapPool != null)
+		{
+			bitmap = bitmapPool.decodeFile(filePath, bmOptions);
+		}
+		else
+		{
+			bmOptions.inPurgeable = true;
+			bitmap = BitmapFactory.decodeFile(filePath, bmOptions);
+		}
+
 		//return bitmap;
 		Bitmap croppedBitmap = Bitmap.createBitmap(bitmap, 0, 0, targetWidth, targetHeight);
+
+		if (bitmapPool != null && croppedBitmap != bitmap)
+		{
+			bitmapPool.put(bitmap);
+		}
+
         return croppedBitmap;
 	}
 	
@@ -1,20 +1,45 @@
 package uu.toolbox.data;
 
 import android.content.Context;
+import android.util.LruCache;
+import android.util.Pair;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import uu.toolbox.core.UUFile;
 import uu.toolbox.core.UUJson;
+import uu.toolbox.core.UUMemoryBudget;
+import uu.toolbox.core.UUObjectDelegate;
 import uu.toolbox.core.UUString;
+import uu.toolbox.core.UUWorkerThread;
 import uu.toolbox.logging.UULog;
 
 public class UUDataCache implements UUDataCacheProtocol
@@ -25,11 +50,57 @@ public class UUDataCache implements UUDataCacheProtocol
 
     public static final long DEFAULT_CONTENT_EXPIRATION_SECONDS = (long)(60L * 60L * 24L * 30L * 1000L); // 30 days
 
+    // Share of the UUMemoryBudget given to the in memory tier
+    public static final float MEMORY_BUDGET_SHARE = 1.0f;
+
+    // Blobs larger than this fraction of the memory budget are only kept on disk
+    private static final int MEMORY_CACHE_MAX_ENTRY_DIVISOR = 8;
+
+    // Number of keys whose meta data is held in memory
+    private static final int META_DATA_CACHE_SIZE = 1024;
+
+    // Number of expired entries removed per step of an incremental purge
+    private static final int PURGE_BATCH_SIZE = 256;
+
+    // Zero means the disk tier is only bounded by content expiration
+    public static final long DEFAULT_MAX_DISK_CACHE_SIZE = 0;
+
+    // When over budget, entries are evicted until usage drops to this fraction of the max size
+    private static final float DISK_CACHE_EVICTION_TARGET = 0.9f;
+    private static final int EVICTION_BATCH_SIZE = 64;
+
+    // Meta data writes are queued per key and flushed to the database in one transaction, either
+    // after a short delay or as soon as this many keys are waiting
+    private static final long META_DATA_FLUSH_DELAY_MILLIS = 250;
+    private static final int META_DATA_FLUSH_THRESHOLD = 256;
+
+    // Keys are hashed onto a fixed set of read/write locks that guard the file and meta data pair
+    private static final int KEY_LOCK_STRIPES = 32;
+
+    // Chunk size used when checksumming memory mapped files
+    private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+
+    public enum EvictionPolicy
+    {
+        /** Evict the entries that were read or written least recently */
+        LRU,
+
+        /** Evict the entries with the fewest reads and writes, oldest access first */
+        LFU
+    }
+
     public static class MetaData
     {
         public static final String Timestamp = "Timestamp";
     }
 
+    public static class PurgeReport
+    {
+        public int entriesRemoved;
+        public long bytesRemoved;
+        public long durationMillis;
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Singleton Interface
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -53,6 +124,52 @@ public class UUDataCache implements UUDataCacheProtocol
     private long contentExpirationLength = DEFAULT_CONTENT_EXPIRATION_SECONDS;
     private File cacheFolder = null;
     private UUDataCacheDb metaDataDb;
+    private MemoryCache memoryCache;
+    private UUMemoryBudget memoryBudget;
+
+    private final UUMemoryBudget.Client memoryBudgetClient = new UUMemoryBudget.Client()
+    {
+        @Override
+        public long getMemoryUsage()
+        {
+            return memoryCache.size();
+        }
+
+        @Override
+        public void setMemoryLimit(final long maxBytes)
+        {
+            memoryCache.resize((int)Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes)));
+        }
+
+        @Override
+        public void trimMemory(final long targetBytes)
+        {
+            memoryCache.trimToSize((int)Math.min(Integer.MAX_VALUE, targetBytes));
+        }
+    };
+    private final LruCache<String, MetaDataEntry> metaDataCache = new LruCache<>(META_DATA_CACHE_SIZE);
+
+    private long maxDiskCacheSize = DEFAULT_MAX_DISK_CACHE_SIZE;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private final AtomicLong diskCacheUsage = new AtomicLong(0);
+    private final AtomicBoolean diskTrimScheduled = new AtomicBoolean(false);
+
+    private final long creationTime = System.currentTimeMillis();
+    private boolean checksumVerificationEnabled = false;
+
+    private final HashMap<String, PendingMetaData> pendingMetaData = new HashMap<>();
+    private HashMap<String, PendingMetaData> flushingMetaData = null;
+    private boolean metaDataFlushScheduled = false;
+    private final Object metaDataFlushLock = new Object();
+
+    private final ReentrantReadWriteLock[] keyLocks = new ReentrantReadWriteLock[KEY_LOCK_STRIPES];
+
+    // Number of keys that map to each legacy file name, null until the startup migration has
+    // listed them.  Only names used by exactly one key are migrated.
+    private volatile HashMap<String, Integer> legacyNameCounts = null;
+
+    private static final UUWorkerThread workerThread = new UUWorkerThread("UUDataCache");
+    private static final UUWorkerThread metaDataWriterThread = new UUWorkerThread("UUDataCacheMetaDataWriter");
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Instance Variables
@@ -64,8 +181,23 @@ public class UUDataCache implements UUDataCacheProtocol
     {
         cacheFolder = cacheLocation;
         contentExpirationLength = contentExpiration;
+
+        for (int i = 0; i < keyLocks.length; i++)
+        {
+            keyLocks[i] = new ReentrantReadWriteLock();
+        }
+
         UUFile.createFoldersIfNeeded(cacheFolder);
         metaDataDb = new UUDataCacheDb(context);
+
+        memoryBudget = UUMemoryBudget.getOrInit(context);
+        memoryCache = new MemoryCache((int)Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget.getBudgetForShare(MEMORY_BUDGET_SHARE))));
+
+        workerThread.post(this::deleteOrphanedTempFiles);
+        workerThread.post(this::migrateLegacyFiles);
+        workerThread.post(this::loadDiskCacheUsage);
+
+        memoryBudget.register(memoryBudgetClient, MEMORY_BUDGET_SHARE);
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -77,38 +209,240 @@ public class UUDataCache implements UUDataCacheProtocol
     public byte[] getData(@NonNull String key)
     {
         removeIfExpired(key);
+        return getDataIgnoringExpiration(key);
+    }
+
+    /**
+     * Fetches data from the cache even if it has expired.  Unlike getData, expired data is left in
+     * place, which allows stale content to be shown while it is refreshed.
+     *
+     * @param key lookup key
+     * @return data from the cache, or null if the object does not exist.
+     */
+    @Nullable
+    public byte[] getDataIgnoringExpiration(@NonNull String key)
+    {
+        byte[] cached;
+        boolean corrupt = false;
+
+        ReentrantReadWriteLock lock = lockForKey(key);
+        lock.readLock().lock();
+
+        try
+        {
+            cached = loadFromCache(key);
+            if (cached == null)
+            {
+                cached = loadFromDisk(key);
+
+                if (cached != null && !isChecksumValid(key, cached))
+                {
+                    cached = null;
+                    corrupt = true;
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        if (corrupt)
+        {
+            removeCorruptData(key);
+        }
 
-        byte[] cached = loadFromCache(key);
         if (cached != null)
         {
-            return cached;
+            recordAccess(key);
         }
 
-        return loadFromDisk(key);
+        return cached;
     }
 
     @Override
     public void setData(@NonNull byte[] data, @NonNull String key)
     {
-        saveToDisk(data, key);
-        saveToCache(data, key);
+        ReentrantReadWriteLock lock = lockForKey(key);
+        lock.writeLock().lock();
 
-        HashMap<String, Object> md = getMetaData(key);
-        md.put(MetaData.Timestamp, System.currentTimeMillis());
-        setMetaData(md, key);
+        try
+        {
+            if (!saveToDisk(data, key))
+            {
+                removeFileFromCache(key);
+                return;
+            }
+
+            saveToCache(data, key);
+            commitEntry(key, data.length, checksumVerificationEnabled ? computeChecksum(data) : 0);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer getMappedData(@NonNull String key)
+    {
+        removeIfExpired(key);
+
+        ByteBuffer buffer;
+        boolean corrupt = false;
+
+        ReentrantReadWriteLock lock = lockForKey(key);
+        lock.readLock().lock();
+
+        try
+        {
+            byte[] cached = loadFromCache(key);
+            if (cached != null)
+            {
+                buffer = ByteBuffer.wrap(cached).asReadOnlyBuffer();
+            }
+            else
+            {
+                buffer = mapFromDisk(key);
+
+                if (buffer != null && !isChecksumValid(key, buffer))
+                {
+                    buffer = null;
+                    corrupt = true;
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        if (corrupt)
+        {
+            removeCorruptData(key);
+        }
+
+        if (buffer != null)
+        {
+            recordAccess(key);
+        }
+
+        return buffer;
+    }
+
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull String key)
+    {
+        removeIfExpired(key);
+
+        ReentrantReadWriteLock lock = lockForKey(key);
+        lock.readLock().lock();
+
+        try
+        {
+            InputStream stream = null;
+
+            byte[] cached = loadFromCache(key);
+            if (cached != null)
+            {
+                stream = new ByteArrayInputStream(cached);
+            }
+            else
+            {
+                File file = resolveDiskFile(key);
+                if (file.exists())
+                {
+                    stream = new BufferedInputStream(new FileInputStream(file));
+
+                    long expected = (checksumVerificationEnabled ? getChecksum(key) : 0);
+                    if (expected != 0)
+                    {
+                        stream = new VerifiedInputStream(stream, key, expected);
+                    }
+                }
+            }
+
+            if (stream != null)
+            {
+                recordAccess(key);
+            }
+
+            return stream;
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "openInputStream", ex);
+            return null;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Nullable
+    @Override
+    public EntryOutputStream openOutputStream(@NonNull String key)
+    {
+        try
+        {
+            return new EntryOutputStream(key);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "openOutputStream", ex);
+            return null;
+        }
     }
 
     @NonNull
     @Override
     public HashMap<String, Object> getMetaData(@NonNull String key)
     {
-        return metaDataDb.getMetaData(key);
+        ReentrantReadWriteLock lock = lockForKey(key);
+        lock.readLock().lock();
+
+        try
+        {
+            MetaDataEntry entry = metaDataCache.get(key);
+            if (entry == null || (entry.exists && entry.metaData == null))
+            {
+                entry = getPendingMetaDataEntry(key);
+            }
+
+            if (entry == null || (entry.exists && entry.metaData == null))
+            {
+                UUDataCacheMetaData row = metaDataDb.getMetaDataRow(key);
+                entry = (row != null) ? new MetaDataEntry(row.timestamp, row.explodeMetaData()) : MetaDataEntry.MISSING;
+                metaDataCache.put(key, entry);
+            }
+
+            return (entry.metaData != null) ? new HashMap<>(entry.metaData) : new HashMap<>();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
     public void setMetaData(@NonNull HashMap<String, Object> metaData, @NonNull String key)
     {
-        metaDataDb.setMetaData(key, metaData);
+        ReentrantReadWriteLock lock = lockForKey(key);
+        lock.writeLock().lock();
+
+        try
+        {
+            long timestamp = timestampFromMetaData(metaData);
+            queueMetaData(key, timestamp, metaData);
+            metaDataCache.put(key, new MetaDataEntry(timestamp, new HashMap<>(metaData)));
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
@@ -118,8 +452,18 @@ public class UUDataCache implements UUDataCacheProtocol
         {
             if (UUString.isNotEmpty(key))
             {
-                File file = getDiskFileName(key);
-                return file.exists();
+                ReentrantReadWriteLock lock = lockForKey(key);
+                lock.readLock().lock();
+
+                try
+                {
+                    File file = resolveDiskFile(key);
+                    return file.exists();
+                }
+                finally
+                {
+                    lock.readLock().unlock();
+                }
             }
         }
         catch (Exception ex)
@@ -133,12 +477,10 @@ public class UUDataCache implements UUDataCacheProtocol
     @Override
     public boolean isDataExpired(@NonNull String key)
     {
-        HashMap<String, Object> md = getMetaData(key);
-        Object timestamp = md.get(MetaData.Timestamp);
-        if (timestamp != null && timestamp instanceof Long)
+        long timestamp = getTimestamp(key);
+        if (timestamp > 0)
         {
-            long actualTimestamp = (Long)timestamp;
-            long elapsed = System.currentTimeMillis() - actualTimestamp;
+            long elapsed = System.currentTimeMillis() - timestamp;
             return (elapsed > contentExpirationLength);
         }
 
@@ -148,29 +490,65 @@ public class UUDataCache implements UUDataCacheProtocol
     @Override
     public void removeData(@NonNull String key)
     {
-        removeAllMetaData(key);
-        removeFileFromCache(key);
-        removeFileFromDisk(key);
+        ReentrantReadWriteLock lock = lockForKey(key);
+        lock.writeLock().lock();
+
+        try
+        {
+            removeAllMetaData(key);
+            removeFileFromCache(key);
+            removeFileFromDisk(key);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
     public void clearCache()
     {
-        clearDiskCache();
-        clearMemoryCache();
+        lockAllKeys();
+
+        try
+        {
+            clearDiskCache();
+            clearMemoryCache();
+
+            synchronized (metaDataFlushLock)
+            {
+                synchronized (pendingMetaData)
+                {
+                    pendingMetaData.clear();
+                }
 
-        metaDataDb.clearAllMetaData();
+                metaDataDb.clearAllMetaData();
+                metaDataCache.evictAll();
+
+                // Reset under the flush lock so it can't land in the middle of loadDiskCacheUsage
+                diskCacheUsage.set(0);
+            }
+        }
+        finally
+        {
+            unlockAllKeys();
+        }
     }
 
     @Override
     public void purgeExpiredData()
     {
-        ArrayList<String> keys = listKeys();
+        long start = System.currentTimeMillis();
+        long cutoff = start - contentExpirationLength;
 
-        for (String key : keys)
-        {
-            removeIfExpired(key);
-        }
+        flushMetaData();
+
+        PurgeReport report = new PurgeReport();
+        ArrayList<String> keys = metaDataDb.listExpiredKeys(cutoff, 0);
+        metaDataDb.removeExpiredMetaData(removeExpiredFiles(keys, cutoff, report), cutoff);
+        report.durationMillis = System.currentTimeMillis() - start;
+
+        UULog.debug(getClass(), "purgeExpiredData", "Purged " + report.entriesRemoved + " entries, " + report.bytesRemoved + " bytes");
     }
 
     @Override
@@ -189,18 +567,12 @@ public class UUDataCache implements UUDataCacheProtocol
     @Override
     public ArrayList<String> listKeys()
     {
-        ArrayList<String> results = new ArrayList<>();
+        ArrayList<String> results;
 
         try
         {
-            if (cacheFolder != null)
-            {
-                File[] list = cacheFolder.listFiles();
-                for (File f : list)
-                {
-                    results.add(f.getName());
-                }
-            }
+            flushMetaData();
+            results = metaDataDb.listKeys();
         }
         catch (Exception ex)
         {
@@ -211,80 +583,937 @@ public class UUDataCache implements UUDataCacheProtocol
         return results;
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-    // Private Implementation
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-
-    private static @NonNull File defaultCacheFolder(@NonNull final Context context)
-    {
-        return new File(context.getCacheDir(), "UUDataCache");
-    }
-
-    @NonNull
-    private String sanitizeKey(@NonNull final String key)
-    {
-        return key.replaceAll("[^A-Za-z0-9]", "-");
-    }
-
+    /**
+     * Finds which of a set of keys have unexpired data in the cache, using a single query per
+     * batch of keys rather than a lookup per key.  This reads the database and file system, so
+     * call it off the main thread.
+     *
+     * @param keys keys to check
+     * @return the subset of keys that are cached and not expired
+     */
     @NonNull
-    public File getDiskFileName(@NonNull final String key)
-    {
-        return new File(cacheFolder, sanitizeKey(key));
-    }
-
-    private void removeIfExpired(@NonNull final String key)
-    {
-        if (isDataExpired(key))
-        {
-            removeData(key);
-        }
-    }
-
-    @Nullable
-    private byte[] loadFromDisk(@NonNull final String key)
+    public HashSet<String> listCachedKeys(@NonNull final Collection<String> keys)
     {
-        byte[] data = null;
+        HashSet<String> results = new HashSet<>();
 
         try
         {
-            File pathUrl = getDiskFileName(key);
-            data = UUFile.readFile(pathUrl);
+            if (!keys.isEmpty())
+            {
+                flushMetaData();
+
+                // A row can outlive its file, so only keys whose file is still there count
+                for (String key : metaDataDb.listUnexpiredKeys(new ArrayList<>(keys), System.currentTimeMillis() - contentExpirationLength))
+                {
+                    if (doesDataExist(key))
+                    {
+                        results.add(key);
+                    }
+                }
+            }
         }
         catch (Exception ex)
         {
-            UULog.error(getClass(), "loadFromDisk", ex);
+            UULog.error(getClass(), "listCachedKeys", ex);
         }
 
-        return data;
+        return results;
     }
 
-    @Nullable
-    private byte[] loadFromCache(@NonNull final String key)
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Incremental Purge
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Removes all expired content from the cache on a background worker.  Work is done in small
+     * batches, and the worker yields after each time slice so other cache work can run in between.
+     *
+     * @param timeSliceMillis maximum time to spend per slice before yielding the worker
+     * @param delegate optional callback invoked with a summary of what was removed
+     */
+    public void purgeExpiredDataInBackground(final long timeSliceMillis, @Nullable final UUObjectDelegate<PurgeReport> delegate)
     {
-        //return dataCache.object(forKey: key as NSString) as Data?
+        final long start = System.currentTimeMillis();
+        final long cutoff = start - contentExpirationLength;
+        final PurgeReport report = new PurgeReport();
 
-        // TODO: Implement in memory cache
-        return null;
+        workerThread.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    long sliceEnd = System.currentTimeMillis() + timeSliceMillis;
+                    boolean done = false;
+
+                    while (!done && System.currentTimeMillis() < sliceEnd)
+                    {
+                        done = (purgeExpiredBatch(cutoff, report) < PURGE_BATCH_SIZE);
+                    }
+
+                    if (!done)
+                    {
+                        workerThread.post(this);
+                        return;
+                    }
+                }
+                catch (Exception ex)
+                {
+                    UULog.error(UUDataCache.class, "purgeExpiredDataInBackground", ex);
+                }
+
+                report.durationMillis = System.currentTimeMillis() - start;
+                UUObjectDelegate.safeInvoke(delegate, report);
+            }
+        });
     }
 
-    private void removeFileFromDisk(@NonNull String key)
+    private int purgeExpiredBatch(final long cutoff, @NonNull final PurgeReport report)
     {
-        try
-        {
-            File pathUrl = getDiskFileName(key);
-            UUFile.deleteFile(pathUrl);
-        }
-        catch (Exception ex)
-        {
-            UULog.error(getClass(), "removeFileFromDisk", ex);
-        }
+        flushMetaData();
+
+        ArrayList<String> keys = metaDataDb.listExpiredKeys(cutoff, PURGE_BATCH_SIZE);
+        ArrayList<String> removed = removeExpiredFiles(keys, cutoff, report);
+        metaDataDb.removeExpiredMetaData(removed, cutoff);
+
+        // Keys that were skipped stay expired, so stop rather than list them again forever
+        return removed.size();
     }
 
-    private void removeFileFromCache(@NonNull String key)
+    /**
+     * Deletes the files for a list of expired keys
+     *
+     * @param keys expired keys
+     * @param cutoff expiration cutoff the keys were listed with
+     * @param report purge report to update
+     * @return the keys whose files are gone, and whose meta data rows can be deleted
+     */
+    @NonNull
+    private ArrayList<String> removeExpiredFiles(@NonNull final ArrayList<String> keys, final long cutoff, @NonNull final PurgeReport report)
     {
-        try
+        ArrayList<String> removed = new ArrayList<>();
+
+        for (String key : keys)
         {
-            // TODO: Implement remove from cache
+            ReentrantReadWriteLock lock = lockForKey(key);
+            lock.writeLock().lock();
+
+            try
+            {
+                // Rewritten or removed since the expired keys were listed
+                long timestamp = getTimestamp(key);
+                if (timestamp <= 0 || timestamp > cutoff)
+                {
+                    continue;
+                }
+
+                File file = getDiskFileName(key);
+                long length = file.length();
+
+                if (UUFile.deleteFile(file))
+                {
+                    report.entriesRemoved++;
+                    report.bytesRemoved += length;
+                    diskCacheUsage.addAndGet(-length);
+                }
+                else if (file.exists())
+                {
+                    // Keep the row so the file's size and checksum are still tracked
+                    UULog.warn(getClass(), "removeExpiredFiles", "Unable to delete file for key " + key);
+                    continue;
+                }
+
+                removed.add(key);
+                removeFileFromCache(key);
+                metaDataCache.remove(key);
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+
+        return removed;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Meta Data Writer
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes all queued meta data changes to the database.  This normally happens automatically on
+     * a background writer, but can be called to force queued changes to be persisted immediately.
+     */
+    public void flushMetaData()
+    {
+        synchronized (metaDataFlushLock)
+        {
+            synchronized (pendingMetaData)
+            {
+                metaDataFlushScheduled = false;
+
+                if (pendingMetaData.isEmpty())
+                {
+                    return;
+                }
+
+                // Stays visible to readers until the batch has been committed
+                flushingMetaData = new HashMap<>(pendingMetaData);
+                pendingMetaData.clear();
+            }
+
+            try
+            {
+                metaDataDb.writeMetaData(flushingMetaData);
+            }
+            catch (Exception ex)
+            {
+                UULog.error(getClass(), "flushMetaData", ex);
+            }
+            finally
+            {
+                synchronized (pendingMetaData)
+                {
+                    flushingMetaData = null;
+                }
+            }
+        }
+    }
+
+    private void queueMetaData(@NonNull final String key, final long timestamp, @NonNull final HashMap<String, Object> metaData)
+    {
+        synchronized (pendingMetaData)
+        {
+            PendingMetaData pending = pendingMetaDataForWrite(key);
+            pending.timestamp = timestamp;
+            pending.metaData = new HashMap<>(metaData);
+            scheduleMetaDataFlush();
+        }
+    }
+
+    private void queueEntryInfo(@NonNull final String key, final long size, final long checksum, final long accessTime)
+    {
+        synchronized (pendingMetaData)
+        {
+            PendingMetaData pending = pendingMetaDataForWrite(key);
+            pending.hasEntryInfo = true;
+            pending.size = size;
+            pending.checksum = checksum;
+            pending.accessTime = accessTime;
+            pending.accessCount++;
+            scheduleMetaDataFlush();
+        }
+    }
+
+    private void queueAccess(@NonNull final String key, final long accessTime)
+    {
+        synchronized (pendingMetaData)
+        {
+            PendingMetaData pending = pendingMetaDataForWrite(key);
+            pending.accessTime = accessTime;
+            pending.accessCount++;
+            scheduleMetaDataFlush();
+        }
+    }
+
+    private void queueRemoveMetaData(@NonNull final String key)
+    {
+        synchronized (pendingMetaData)
+        {
+            // Anything queued before the remove is moot
+            PendingMetaData pending = new PendingMetaData();
+            pending.removed = true;
+            pendingMetaData.put(key, pending);
+            scheduleMetaDataFlush();
+        }
+    }
+
+    // Must be called while holding the pendingMetaData lock
+    @NonNull
+    private PendingMetaData pendingMetaDataForWrite(@NonNull final String key)
+    {
+        PendingMetaData pending = pendingMetaData.get(key);
+        if (pending == null)
+        {
+            pending = new PendingMetaData();
+            pendingMetaData.put(key, pending);
+        }
+
+        return pending;
+    }
+
+    // Must be called while holding the pendingMetaData lock
+    @Nullable
+    private PendingMetaData pendingMetaDataForRead(@NonNull final String key)
+    {
+        PendingMetaData pending = pendingMetaData.get(key);
+        if (pending == null && flushingMetaData != null)
+        {
+            pending = flushingMetaData.get(key);
+        }
+
+        return pending;
+    }
+
+    // Must be called while holding the pendingMetaData lock
+    private void scheduleMetaDataFlush()
+    {
+        if (pendingMetaData.size() == META_DATA_FLUSH_THRESHOLD)
+        {
+            metaDataWriterThread.post(this::flushMetaData);
+        }
+        else if (!metaDataFlushScheduled)
+        {
+            metaDataFlushScheduled = true;
+            metaDataWriterThread.postDelayed(this::flushMetaData, META_DATA_FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Gets the meta data for a key from the write queue
+     *
+     * @param key lookup key
+     * @return the queued entry, or null if the database has to be consulted
+     */
+    @Nullable
+    private MetaDataEntry getPendingMetaDataEntry(@NonNull final String key)
+    {
+        synchronized (pendingMetaData)
+        {
+            PendingMetaData pending = pendingMetaDataForRead(key);
+            if (pending == null)
+            {
+                return null;
+            }
+
+            if (pending.metaData != null)
+            {
+                return new MetaDataEntry(pending.timestamp, new HashMap<>(pending.metaData));
+            }
+
+            return pending.removed ? MetaDataEntry.MISSING : null;
+        }
+    }
+
+    private long getChecksum(@NonNull final String key)
+    {
+        synchronized (pendingMetaData)
+        {
+            PendingMetaData pending = pendingMetaDataForRead(key);
+            if (pending != null && pending.hasEntryInfo)
+            {
+                return pending.checksum;
+            }
+
+            if (pending != null && pending.removed)
+            {
+                return 0;
+            }
+        }
+
+        return metaDataDb.getChecksum(key);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Checksums
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public boolean isChecksumVerificationEnabled()
+    {
+        return checksumVerificationEnabled;
+    }
+
+    /**
+     * Enables storing a CRC32 of each blob in its meta data and verifying it when the blob is read
+     * back from disk.  A blob that fails verification is removed from the cache and treated as a
+     * miss.  Streams from openInputStream are verified when they reach the end, and fail that
+     * read with an IOException instead.  Entries written while verification was disabled are not
+     * verified.
+     *
+     * @param enabled true to enable checksums
+     */
+    public void setChecksumVerificationEnabled(final boolean enabled)
+    {
+        checksumVerificationEnabled = enabled;
+    }
+
+    private boolean isChecksumValid(@NonNull final String key, @NonNull final byte[] data)
+    {
+        if (!checksumVerificationEnabled)
+        {
+            return true;
+        }
+
+        long expected = getChecksum(key);
+        return (expected == 0 || expected == computeChecksum(data));
+    }
+
+    private boolean isChecksumValid(@NonNull final String key, @NonNull final ByteBuffer data)
+    {
+        if (!checksumVerificationEnabled)
+        {
+            return true;
+        }
+
+        long expected = getChecksum(key);
+        return (expected == 0 || expected == computeChecksum(data));
+    }
+
+    private void removeCorruptData(@NonNull final String key)
+    {
+        UULog.warn(getClass(), "removeCorruptData", "Checksum mismatch for key " + key + ", removing it from the cache");
+        removeData(key);
+    }
+
+    private static long computeChecksum(@NonNull final byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static long computeChecksum(@NonNull final ByteBuffer data)
+    {
+        CRC32 crc = new CRC32();
+        ByteBuffer source = data.duplicate();
+        byte[] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+
+        while (source.hasRemaining())
+        {
+            int count = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+
+        return crc.getValue();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Disk Cache Size
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the maximum number of bytes kept on disk
+     *
+     * @return size in bytes, or zero if the disk tier is unbounded
+     */
+    public long getMaxDiskCacheSize()
+    {
+        return maxDiskCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of bytes kept on disk.  When a write pushes the cache over this
+     * size, entries are evicted in the background according to the eviction policy.
+     *
+     * @param maxBytes size in bytes, or zero to disable size based eviction
+     */
+    public void setMaxDiskCacheSize(final long maxBytes)
+    {
+        maxDiskCacheSize = maxBytes;
+        trimDiskCacheIfNeeded();
+    }
+
+    /**
+     * Gets the number of bytes currently kept on disk
+     *
+     * @return size in bytes
+     */
+    public long getDiskCacheUsage()
+    {
+        return diskCacheUsage.get();
+    }
+
+    @NonNull
+    public EvictionPolicy getEvictionPolicy()
+    {
+        return evictionPolicy;
+    }
+
+    public void setEvictionPolicy(@NonNull final EvictionPolicy policy)
+    {
+        evictionPolicy = policy;
+    }
+
+    private void recordAccess(@NonNull final String key)
+    {
+        queueAccess(key, System.currentTimeMillis());
+    }
+
+    private void trimDiskCacheIfNeeded()
+    {
+        if (maxDiskCacheSize > 0 &&
+            diskCacheUsage.get() > maxDiskCacheSize &&
+            diskTrimScheduled.compareAndSet(false, true))
+        {
+            workerThread.post(this::trimDiskCache);
+        }
+    }
+
+    private void trimDiskCache()
+    {
+        boolean reachedTarget = false;
+
+        try
+        {
+            long target = (long)(maxDiskCacheSize * DISK_CACHE_EVICTION_TARGET);
+            int evicted = 0;
+
+            // Age the access counts so entries that were popular long ago can still be evicted
+            flushMetaData();
+            metaDataDb.decayAccessCounts();
+
+            while (maxDiskCacheSize > 0 && diskCacheUsage.get() > target)
+            {
+                flushMetaData();
+
+                ArrayList<String> keys = metaDataDb.listEvictionCandidates(evictionPolicy, EVICTION_BATCH_SIZE);
+                if (keys.isEmpty())
+                {
+                    break;
+                }
+
+                for (String key : keys)
+                {
+                    if (diskCacheUsage.get() <= target)
+                    {
+                        break;
+                    }
+
+                    removeData(key);
+                    ++evicted;
+                }
+            }
+
+            reachedTarget = (diskCacheUsage.get() <= target);
+            UULog.debug(getClass(), "trimDiskCache", "Evicted " + evicted + " entries, usage is now " + diskCacheUsage.get() + " bytes");
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "trimDiskCache", ex);
+        }
+        finally
+        {
+            diskTrimScheduled.set(false);
+        }
+
+        // A write that went over the limit while this trim was finishing could not schedule one.
+        // Not retried when nothing was left to evict, so an unreachable target can't spin.
+        if (reachedTarget)
+        {
+            trimDiskCacheIfNeeded();
+        }
+    }
+
+    private void loadDiskCacheUsage()
+    {
+        try
+        {
+            flushMetaData();
+
+            // Rows written before sizes were tracked have a zero size, so fill them in from disk
+            ArrayList<String> unsized = metaDataDb.listUnsizedKeys();
+            ArrayList<Pair<String, Long>> sizes = new ArrayList<>();
+            for (String key : unsized)
+            {
+                File file = getDiskFileName(key);
+                if (file.exists())
+                {
+                    sizes.add(new Pair<>(key, file.length()));
+                }
+            }
+
+            metaDataDb.setEntrySizes(sizes);
+
+            // Writes that happen while the sum runs have already added their sizes to the counter,
+            // so only the difference from the deltas recorded before the sum is applied.  Holding
+            // the flush lock keeps their rows, and a clearCache reset, out of the sum.
+            synchronized (metaDataFlushLock)
+            {
+                long baseline = diskCacheUsage.get();
+                flushMetaData();
+                diskCacheUsage.addAndGet(metaDataDb.getTotalSize() - baseline);
+            }
+
+            trimDiskCacheIfNeeded();
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "loadDiskCacheUsage", ex);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Memory Cache
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the maximum number of bytes held by the in memory tier
+     *
+     * @return size in bytes
+     */
+    public int getMemoryCacheSize()
+    {
+        return memoryCache.maxSize();
+    }
+
+    /**
+     * Sets the maximum number of bytes held by the in memory tier.  Shrinking the budget evicts
+     * the least recently used entries immediately.  The size is normally set from this cache's
+     * share of the UUMemoryBudget, and is replaced the next time that budget changes.
+     *
+     * @param maxBytes size in bytes, must be greater than zero
+     */
+    public void setMemoryCacheSize(final int maxBytes)
+    {
+        if (maxBytes > 0)
+        {
+            memoryCache.resize(maxBytes);
+        }
+    }
+
+    /**
+     * Gets the number of bytes currently held by the in memory tier
+     *
+     * @return size in bytes
+     */
+    public int getMemoryCacheUsage()
+    {
+        return memoryCache.size();
+    }
+
+    public int getMemoryCacheHitCount()
+    {
+        return memoryCache.hitCount();
+    }
+
+    public int getMemoryCacheMissCount()
+    {
+        return memoryCache.missCount();
+    }
+
+    public int getMemoryCacheEvictionCount()
+    {
+        return memoryCache.evictionCount();
+    }
+
+    /**
+     * Releases in memory data in response to a ComponentCallbacks2 trim level
+     *
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* constants
+     * @deprecated The shared UUMemoryBudget receives trim callbacks and trims every cache it
+     * manages.  This forwards to it, so every cache in the budget is trimmed.
+     */
+    @Deprecated
+    public void trimMemory(final int level)
+    {
+        memoryBudget.trimMemory(level);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Private Implementation
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static @NonNull File defaultCacheFolder(@NonNull final Context context)
+    {
+        return new File(context.getCacheDir(), "UUDataCache");
+    }
+
+    /**
+     * Gets the on disk location for a key.  Files are named by the SHA-1 of the key and fanned out
+     * into two levels of sub folders so no single folder grows too large to list quickly.
+     *
+     * @param key lookup key
+     * @return a file, which may or may not exist
+     */
+    @NonNull
+    public File getDiskFileName(@NonNull final String key)
+    {
+        String hash = hashKey(key);
+        File folder = new File(new File(cacheFolder, hash.substring(0, 1)), hash.substring(1, 2));
+        return new File(folder, hash);
+    }
+
+    @NonNull
+    private static String hashKey(@NonNull final String key)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return UUString.byteToHex(digest.digest(UUString.stringToUtf8Bytes(key)));
+        }
+        catch (Exception ex)
+        {
+            // SHA-1 is always available, but fall back to a padded hash code just in case
+            return String.format(Locale.US, "%08X", key.hashCode());
+        }
+    }
+
+    /**
+     * File name used before keys were hashed.  Distinct keys can collide on the same name.
+     *
+     * @param key lookup key
+     * @return a file in the root of the cache folder
+     */
+    @NonNull
+    private File getLegacyDiskFileName(@NonNull final String key)
+    {
+        return new File(cacheFolder, key.replaceAll("[^A-Za-z0-9]", "-"));
+    }
+
+    /**
+     * Gets the on disk location for a key, moving a file from the legacy flat layout if
+     * the startup migration has not reached it yet.  Must be called while holding the key's lock.
+     *
+     * @param key lookup key
+     * @return a file, which may or may not exist
+     */
+    @NonNull
+    private File resolveDiskFile(@NonNull final String key)
+    {
+        File file = getDiskFileName(key);
+        if (!file.exists())
+        {
+            migrateLegacyFile(key, file);
+        }
+
+        return file;
+    }
+
+    // Must be called while holding the key's lock
+    private void migrateLegacyFile(@NonNull final String key, @NonNull final File dest)
+    {
+        HashMap<String, Integer> counts = legacyNameCounts;
+        if (counts == null || counts.isEmpty())
+        {
+            return;
+        }
+
+        File legacy = getLegacyDiskFileName(key);
+        Integer count = counts.get(legacy.getName());
+
+        // A name shared by several keys could belong to any of them, so it is never migrated
+        if (count == null || count != 1 || !legacy.isFile())
+        {
+            return;
+        }
+
+        UUFile.createFoldersIfNeeded(dest.getParentFile());
+        if (!legacy.renameTo(dest))
+        {
+            UULog.warn(getClass(), "migrateLegacyFile", "Unable to move " + legacy.getName() + " for key " + key);
+        }
+    }
+
+    /**
+     * Moves all files from the legacy flat layout into the hashed layout.  Files that do not
+     * belong to exactly one meta data row cannot be looked up safely, so they are deleted.
+     */
+    private void migrateLegacyFiles()
+    {
+        try
+        {
+            File[] list = cacheFolder.listFiles(File::isFile);
+            if (list == null || list.length == 0)
+            {
+                return;
+            }
+
+            ArrayList<String> keys = listKeys();
+
+            HashMap<String, Integer> counts = new HashMap<>();
+            for (String key : keys)
+            {
+                String name = getLegacyDiskFileName(key).getName();
+                Integer count = counts.get(name);
+                counts.put(name, (count != null) ? count + 1 : 1);
+            }
+
+            legacyNameCounts = counts;
+
+            for (String key : keys)
+            {
+                // Held so a concurrent setData for the key is not overwritten by the move
+                ReentrantReadWriteLock lock = lockForKey(key);
+                lock.writeLock().lock();
+
+                try
+                {
+                    File dest = getDiskFileName(key);
+                    if (!dest.exists())
+                    {
+                        migrateLegacyFile(key, dest);
+                    }
+                }
+                finally
+                {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            list = cacheFolder.listFiles(File::isFile);
+            if (list != null)
+            {
+                for (File f : list)
+                {
+                    UUFile.deleteFile(f);
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "migrateLegacyFiles", ex);
+        }
+        finally
+        {
+            // Nothing is left to migrate lazily
+            legacyNameCounts = new HashMap<>();
+        }
+    }
+
+    /**
+     * Gets the MetaData.Timestamp value for a key from the typed timestamp column, without
+     * parsing the meta data dictionary.
+     *
+     * @param key lookup key
+     * @return timestamp in milliseconds, or zero if the key has no timestamp
+     */
+    public long getTimestamp(@NonNull final String key)
+    {
+        // Held so a database read cannot replace an entry written by setMetaData in the meantime
+        ReentrantReadWriteLock lock = lockForKey(key);
+        lock.readLock().lock();
+
+        try
+        {
+            MetaDataEntry entry = metaDataCache.get(key);
+            if (entry == null)
+            {
+                entry = getPendingMetaDataEntry(key);
+            }
+
+            if (entry == null)
+            {
+                long timestamp = metaDataDb.getTimestamp(key);
+                entry = (timestamp >= 0) ? new MetaDataEntry(timestamp, null) : MetaDataEntry.MISSING;
+                metaDataCache.put(key, entry);
+            }
+
+            return entry.timestamp;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long timestampFromMetaData(@NonNull final HashMap<String, Object> metaData)
+    {
+        Object timestamp = metaData.get(MetaData.Timestamp);
+        if (timestamp instanceof Number)
+        {
+            return ((Number)timestamp).longValue();
+        }
+
+        return 0;
+    }
+
+    @NonNull
+    private ReentrantReadWriteLock lockForKey(@NonNull final String key)
+    {
+        return keyLocks[(key.hashCode() & 0x7FFFFFFF) % keyLocks.length];
+    }
+
+    private void lockAllKeys()
+    {
+        for (ReentrantReadWriteLock lock : keyLocks)
+        {
+            lock.writeLock().lock();
+        }
+    }
+
+    private void unlockAllKeys()
+    {
+        for (ReentrantReadWriteLock lock : keyLocks)
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeIfExpired(@NonNull final String key)
+    {
+        if (isDataExpired(key))
+        {
+            removeData(key);
+        }
+    }
+
+    @Nullable
+    private byte[] loadFromDisk(@NonNull final String key)
+    {
+        byte[] data = null;
+
+        try
+        {
+            File pathUrl = resolveDiskFile(key);
+            data = UUFile.readFile(pathUrl);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "loadFromDisk", ex);
+        }
+
+        return data;
+    }
+
+    @Nullable
+    private ByteBuffer mapFromDisk(@NonNull final String key)
+    {
+        ByteBuffer buffer = null;
+
+        try
+        {
+            File pathUrl = resolveDiskFile(key);
+            buffer = UUFile.mapFile(pathUrl);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "mapFromDisk", ex);
+        }
+
+        return buffer;
+    }
+
+    @Nullable
+    private byte[] loadFromCache(@NonNull final String key)
+    {
+        return memoryCache.get(key);
+    }
+
+    private void removeFileFromDisk(@NonNull String key)
+    {
+        try
+        {
+            File pathUrl = getDiskFileName(key);
+            long length = pathUrl.length();
+
+            if (UUFile.deleteFile(pathUrl))
+            {
+                diskCacheUsage.addAndGet(-length);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "removeFileFromDisk", ex);
+        }
+    }
+
+    private void removeFileFromCache(@NonNull String key)
+    {
+        try
+        {
+            memoryCache.remove(key);
         }
         catch (Exception ex)
         {
@@ -296,8 +1525,8 @@ public class UUDataCache implements UUDataCacheProtocol
     {
         try
         {
-            //public static void destroy(final Context context, final Class<? extends UUDatabase> dbClass)
-            // TODO: Implement remove all meta data
+            queueRemoveMetaData(key);
+            metaDataCache.remove(key);
         }
         catch (Exception ex)
         {
@@ -305,24 +1534,91 @@ public class UUDataCache implements UUDataCacheProtocol
         }
     }
 
-    private void saveToDisk(@NonNull byte[] data, @NonNull String key)
+    private boolean saveToDisk(@NonNull byte[] data, @NonNull String key)
     {
         try
         {
             File pathUrl = getDiskFileName(key);
-            UUFile.writeFile(pathUrl, data);
+            long previousLength = pathUrl.length();
+            UUFile.createFoldersIfNeeded(pathUrl.getParentFile());
+
+            if (UUFile.writeFileAtomically(pathUrl, createTempFile(pathUrl), data))
+            {
+                diskCacheUsage.addAndGet(data.length - previousLength);
+                return true;
+            }
         }
         catch (Exception ex)
         {
             UULog.error(getClass(), "saveToDisk", ex);
         }
+
+        return false;
+    }
+
+    /**
+     * Records meta data and bookkeeping for an entry whose file has just been written
+     */
+    private void commitEntry(@NonNull final String key, final long size, final long checksum)
+    {
+        long now = System.currentTimeMillis();
+        HashMap<String, Object> md = getMetaData(key);
+        md.put(MetaData.Timestamp, now);
+        setMetaData(md, key);
+        queueEntryInfo(key, size, checksum, now);
+
+        trimDiskCacheIfNeeded();
+    }
+
+    @NonNull
+    private File getTempFolder()
+    {
+        return new File(cacheFolder, "tmp");
+    }
+
+    @NonNull
+    private File createTempFile(@NonNull final File dest) throws Exception
+    {
+        File folder = getTempFolder();
+        UUFile.createFoldersIfNeeded(folder);
+        return File.createTempFile(dest.getName(), ".tmp", folder);
+    }
+
+    /**
+     * Deletes temp files left behind by a write that was interrupted by a crash or process death.
+     * Only files older than this instance are removed, so in flight writes are left alone.
+     */
+    private void deleteOrphanedTempFiles()
+    {
+        try
+        {
+            File[] list = getTempFolder().listFiles();
+            if (list != null)
+            {
+                for (File f : list)
+                {
+                    if (f.lastModified() < creationTime)
+                    {
+                        UUFile.deleteFile(f);
+                    }
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "deleteOrphanedTempFiles", ex);
+        }
     }
 
     private void saveToCache(@NonNull byte[] data, @NonNull String key)
     {
-        //dataCache.setObject(data as NSData, forKey: key as NSString)
+        if (data.length > (memoryCache.maxSize() / MEMORY_CACHE_MAX_ENTRY_DIVISOR))
+        {
+            memoryCache.remove(key);
+            return;
+        }
 
-        // TODO: Implement memory cache
+        memoryCache.put(key, data);
     }
 
     private void clearDiskCache()
@@ -340,30 +1636,300 @@ public class UUDataCache implements UUDataCacheProtocol
 
     private void clearMemoryCache()
     {
-        /*try
+        memoryCache.evictAll();
+    }
+
+    /**
+     * Stream returned from openInputStream when checksums are enabled.  The checksum is verified
+     * once the whole file has been read, and a mismatch removes the entry and fails the read.
+     * Callers that stop before the end of the stream get no verification.
+     */
+    private class VerifiedInputStream extends CheckedInputStream
+    {
+        private final String key;
+        private final long expected;
+        private boolean verified = false;
+
+        private VerifiedInputStream(@NonNull final InputStream stream, @NonNull final String key, final long expected)
         {
-            UUFile.deleteFile(cacheFolder);
-            UUFile.createFoldersIfNeeded(cacheFolder);
+            super(stream, new CRC32());
+            this.key = key;
+            this.expected = expected;
         }
-        catch (Exception ex)
+
+        @Override
+        public int read() throws IOException
         {
-            UULog.error(getClass(), "clearDiskCache", ex);
-        }*/
+            int result = super.read();
+            if (result == -1)
+            {
+                verify();
+            }
+
+            return result;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] buffer, final int offset, final int length) throws IOException
+        {
+            int result = super.read(buffer, offset, length);
+            if (result == -1)
+            {
+                verify();
+            }
+
+            return result;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            // Rewinding would feed the same bytes into the checksum twice
+            return false;
+        }
+
+        private void verify() throws IOException
+        {
+            if (verified)
+            {
+                return;
+            }
+
+            verified = true;
+
+            if (getChecksum().getValue() != expected)
+            {
+                // Leave the entry alone if it was rewritten while this stream was open
+                if (UUDataCache.this.getChecksum(key) == expected)
+                {
+                    removeCorruptData(key);
+                }
+
+                throw new IOException("Checksum mismatch for key " + key);
+            }
+        }
+    }
+
+    /**
+     * Stream returned from openOutputStream.  Data is written to a temp file and atomically moved
+     * into place when the stream is closed.  Call abort instead of close to discard the data.
+     */
+    public class EntryOutputStream extends OutputStream
+    {
+        private final String key;
+        private final File dest;
+        private final File tempFile;
+        private final FileOutputStream fileStream;
+        private final OutputStream stream;
+        private final CRC32 crc = new CRC32();
+        private long size = 0;
+        private boolean closed = false;
+
+        private EntryOutputStream(@NonNull final String key) throws Exception
+        {
+            this.key = key;
+            dest = getDiskFileName(key);
+            UUFile.createFoldersIfNeeded(dest.getParentFile());
+            tempFile = createTempFile(dest);
+            fileStream = new FileOutputStream(tempFile);
+            stream = new BufferedOutputStream(fileStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            stream.write(b);
+            crc.update(b);
+            ++size;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException
+        {
+            stream.write(b, off, len);
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            stream.flush();
+        }
+
+        /**
+         * Gets the number of bytes written so far
+         *
+         * @return byte count
+         */
+        public long getSize()
+        {
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            closed = true;
+
+            ReentrantReadWriteLock lock = lockForKey(key);
+
+            try
+            {
+                stream.flush();
+                fileStream.getFD().sync();
+                stream.close();
+
+                lock.writeLock().lock();
+
+                try
+                {
+                    long previousLength = dest.length();
+                    if (!tempFile.renameTo(dest))
+                    {
+                        throw new IOException("Unable to move " + tempFile.getName() + " to " + dest.getName());
+                    }
+
+                    diskCacheUsage.addAndGet(size - previousLength);
+                    removeFileFromCache(key);
+                    commitEntry(key, size, checksumVerificationEnabled ? crc.getValue() : 0);
+                }
+                finally
+                {
+                    lock.writeLock().unlock();
+                }
+            }
+            catch (IOException ex)
+            {
+                UUFile.deleteFile(tempFile);
+                throw ex;
+            }
+        }
+
+        /**
+         * Closes the stream and discards everything written to it.  Any existing object for the
+         * key is left untouched.
+         */
+        public void abort()
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            closed = true;
+
+            try
+            {
+                stream.close();
+            }
+            catch (Exception ex)
+            {
+                UULog.debug(UUDataCache.class, "abort", ex);
+            }
+
+            UUFile.deleteFile(tempFile);
+        }
     }
 
+    /**
+     * Coalesced set of meta data changes waiting to be written for a single key
+     */
+    private static class PendingMetaData
+    {
+        // Delete the existing row before applying anything else
+        private boolean removed = false;
+
+        @Nullable
+        private HashMap<String, Object> metaData = null;
+        private long timestamp = 0;
+
+        private boolean hasEntryInfo = false;
+        private long size = 0;
+        private long checksum = 0;
+
+        private long accessTime = 0;
+        private int accessCount = 0;
+    }
+
+    private static class MetaDataEntry
+    {
+        private static final MetaDataEntry MISSING = new MetaDataEntry(false, 0, null);
+
+        private final boolean exists;
+        private final long timestamp;
+
+        // Null when only the timestamp has been read
+        @Nullable
+        private final HashMap<String, Object> metaData;
+
+        private MetaDataEntry(final long timestamp, @Nullable final HashMap<String, Object> metaData)
+        {
+            this(true, timestamp, metaData);
+        }
+
+        private MetaDataEntry(final boolean exists, final long timestamp, @Nullable final HashMap<String, Object> metaData)
+        {
+            this.exists = exists;
+            this.timestamp = timestamp;
+            this.metaData = metaData;
+        }
+    }
 
-    @UUSqlTable(tableName = "uu_data_cache_meta_data")
+    static class MemoryCache extends LruCache<String, byte[]>
+    {
+        MemoryCache(final int maxBytes)
+        {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, byte[] value)
+        {
+            return value.length;
+        }
+    }
+
+    @UUSqlTable(tableName = UUDataCacheMetaData.TABLE_NAME)
     public static class UUDataCacheMetaData implements UUDataModel
     {
-        @UUSqlColumn(name = "name", type = UUSqlColumn.Type.TEXT, primaryKey = true)
+        static final String TABLE_NAME = "uu_data_cache_meta_data";
+        static final String NAME_COLUMN = "name";
+        static final String TIMESTAMP_COLUMN = "timestamp";
+        static final String META_DATA_COLUMN = "meta_data";
+        static final String SIZE_COLUMN = "size";
+        static final String ACCESS_TIME_COLUMN = "access_time";
+        static final String ACCESS_COUNT_COLUMN = "access_count";
+        static final String CHECKSUM_COLUMN = "checksum";
+
+        @UUSqlColumn(name = NAME_COLUMN, type = UUSqlColumn.Type.TEXT, primaryKey = true)
         private String name;
 
-        @UUSqlColumn(name = "timestamp", type = UUSqlColumn.Type.REAL)
+        // Mirrors MetaData.Timestamp so expiration can be checked without parsing meta_data
+        @UUSqlColumn(name = TIMESTAMP_COLUMN, type = UUSqlColumn.Type.REAL)
         private long timestamp;
 
-        @UUSqlColumn(name = "meta_data", type = UUSqlColumn.Type.TEXT)
+        @UUSqlColumn(name = META_DATA_COLUMN, type = UUSqlColumn.Type.TEXT)
         private String metaData;
 
+        @UUSqlColumn(name = SIZE_COLUMN, type = UUSqlColumn.Type.INT_64, defaultValue = "0", existsInVersion = 2)
+        private long size;
+
+        @UUSqlColumn(name = ACCESS_TIME_COLUMN, type = UUSqlColumn.Type.INT_64, defaultValue = "0", existsInVersion = 2)
+        private long accessTime;
+
+        @UUSqlColumn(name = ACCESS_COUNT_COLUMN, type = UUSqlColumn.Type.INTEGER, defaultValue = "0", existsInVersion = 2)
+        private int accessCount;
+
+        // CRC32 of the blob, zero when checksums were disabled at write time
+        @UUSqlColumn(name = CHECKSUM_COLUMN, type = UUSqlColumn.Type.INT_64, defaultValue = "0", existsInVersion = 3)
+        private long checksum;
+
         @NonNull
         private HashMap<String, Object> explodeMetaData()
         {
@@ -409,6 +1975,9 @@ public class UUDataCache implements UUDataCacheProtocol
 
     private static class UUDataCacheDb extends UUDefaultDatabase
     {
+        private static final String TIMESTAMP_INDEX_NAME = "uu_data_cache_meta_data_timestamp_idx";
+        private static final String ACCESS_TIME_INDEX_NAME = "uu_data_cache_meta_data_access_time_idx";
+
 //        private static final String DB_NAME = "UUDataCacheDb";
 //        private static final int DB_VERSION_ONE = 1;
 //
@@ -419,31 +1988,248 @@ public class UUDataCache implements UUDataCacheProtocol
             super(context, new UUDataCacheDbSchema());
         }
 
-        @NonNull
-        private HashMap<String, Object> getMetaData(@NonNull final String key)
+        @Nullable
+        private UUDataCacheMetaData getMetaDataRow(@NonNull final String key)
         {
-            String where = String.format(Locale.US, "%s = ?", "name");
+            String where = UUSql.buildSingleColumnWhere(UUDataCacheMetaData.NAME_COLUMN);
             String[] whereArgs = new String[] { key };
 
-            HashMap<String, Object> result = new HashMap<>();
+            return querySingleObject(UUDataCacheMetaData.class, where, whereArgs, null);
+        }
+
+        /**
+         * Reads the typed timestamp column for a key
+         *
+         * @param key lookup key
+         * @return the timestamp, or -1 if there is no row for the key
+         */
+        private long getTimestamp(@NonNull final String key)
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s WHERE %s = ?",
+                UUDataCacheMetaData.TIMESTAMP_COLUMN, UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.NAME_COLUMN);
+
+            return querySingleLongCell(sql, new String[] { key }, -1);
+        }
+
+        /**
+         * Writes a batch of queued meta data changes in a single transaction
+         *
+         * @param batch queued changes, by key
+         */
+        private void writeMetaData(@NonNull final HashMap<String, PendingMetaData> batch)
+        {
+            String deleteSql = String.format(Locale.US, "DELETE FROM %s WHERE %s = ?",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.NAME_COLUMN);
+
+            String insertSql = String.format(Locale.US, "INSERT OR IGNORE INTO %s (%s) VALUES (?)",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.NAME_COLUMN);
+
+            // Only touch the meta data columns so size and access bookkeeping is preserved
+            String metaDataSql = String.format(Locale.US, "UPDATE %s SET %s = ?, %s = ? WHERE %s = ?",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.TIMESTAMP_COLUMN, UUDataCacheMetaData.META_DATA_COLUMN, UUDataCacheMetaData.NAME_COLUMN);
+
+            String entryInfoSql = String.format(Locale.US, "UPDATE %s SET %s = ?, %s = ? WHERE %s = ?",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.SIZE_COLUMN, UUDataCacheMetaData.CHECKSUM_COLUMN, UUDataCacheMetaData.NAME_COLUMN);
 
-            UUDataCacheMetaData row = querySingleObject(UUDataCacheMetaData.class, where, whereArgs, null);
-            if (row != null)
+            String accessSql = String.format(Locale.US, "UPDATE %s SET %s = ?, %s = %s + ? WHERE %s = ?",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.ACCESS_TIME_COLUMN,
+                UUDataCacheMetaData.ACCESS_COUNT_COLUMN, UUDataCacheMetaData.ACCESS_COUNT_COLUMN, UUDataCacheMetaData.NAME_COLUMN);
+
+            ArrayList<Pair<String, Object[]>> lines = new ArrayList<>();
+
+            for (Map.Entry<String, PendingMetaData> entry : batch.entrySet())
             {
-                result = row.explodeMetaData();
+                String key = entry.getKey();
+                PendingMetaData pending = entry.getValue();
+
+                if (pending.removed)
+                {
+                    lines.add(new Pair<>(deleteSql, new Object[] { key }));
+                }
+
+                if (pending.metaData != null)
+                {
+                    UUDataCacheMetaData md = new UUDataCacheMetaData();
+                    md.setMetaDataFromHashMap(pending.metaData);
+
+                    lines.add(new Pair<>(insertSql, new Object[] { key }));
+                    lines.add(new Pair<>(metaDataSql, new Object[] { pending.timestamp, md.metaData, key }));
+                }
+
+                if (pending.hasEntryInfo)
+                {
+                    lines.add(new Pair<>(entryInfoSql, new Object[] { pending.size, pending.checksum, key }));
+                }
+
+                if (pending.accessCount > 0)
+                {
+                    lines.add(new Pair<>(accessSql, new Object[] { pending.accessTime, pending.accessCount, key }));
+                }
             }
 
-            return result;
+            execSqlLinesWithArgs(lines);
+        }
+
+        private long getChecksum(@NonNull final String key)
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s WHERE %s = ?",
+                UUDataCacheMetaData.CHECKSUM_COLUMN, UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.NAME_COLUMN);
+
+            return querySingleLongCell(sql, new String[] { key }, 0);
+        }
+
+        private void setEntrySizes(@NonNull final ArrayList<Pair<String, Long>> sizes)
+        {
+            if (sizes.isEmpty())
+            {
+                return;
+            }
+
+            // Only fill in rows that are still unsized, a write since the scan has the real size
+            String sql = String.format(Locale.US, "UPDATE %s SET %s = ? WHERE %s = ? AND %s = 0",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.SIZE_COLUMN, UUDataCacheMetaData.NAME_COLUMN, UUDataCacheMetaData.SIZE_COLUMN);
+
+            ArrayList<Pair<String, Object[]>> lines = new ArrayList<>();
+            for (Pair<String, Long> size : sizes)
+            {
+                lines.add(new Pair<>(sql, new Object[] { size.second, size.first }));
+            }
+
+            execSqlLinesWithArgs(lines);
+        }
+
+        private long getTotalSize()
+        {
+            String sql = String.format(Locale.US, "SELECT SUM(%s) FROM %s", UUDataCacheMetaData.SIZE_COLUMN, UUDataCacheMetaData.TABLE_NAME);
+            return querySingleLongCell(sql, null, 0);
+        }
+
+        @NonNull
+        private ArrayList<String> listKeys()
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s", UUDataCacheMetaData.NAME_COLUMN, UUDataCacheMetaData.TABLE_NAME);
+            return listSingleStringColumn(sql, null);
+        }
+
+        @NonNull
+        private ArrayList<String> listUnexpiredKeys(@NonNull final ArrayList<String> keys, final long cutoff)
+        {
+            ArrayList<String> results = new ArrayList<>();
+
+            // Leave room for the cutoff argument
+            int batchSize = UUSql.MAX_BOUND_STATEMENTS - 1;
+
+            for (int i = 0; i < keys.size(); i += batchSize)
+            {
+                ArrayList<String> batch = new ArrayList<>(keys.subList(i, Math.min(keys.size(), i + batchSize)));
+                UUSqlArgs args = UUSql.formatWhereInClause(UUDataCacheMetaData.NAME_COLUMN, batch);
+
+                String sql = String.format(Locale.US, "SELECT %s FROM %s WHERE %s AND NOT (%s)",
+                    UUDataCacheMetaData.NAME_COLUMN, UUDataCacheMetaData.TABLE_NAME, args.where, expiredWhereClause());
+
+                String[] whereArgs = Arrays.copyOf(args.whereArgs, args.whereArgs.length + 1);
+                whereArgs[whereArgs.length - 1] = String.valueOf(cutoff);
+
+                results.addAll(listSingleStringColumn(sql, whereArgs));
+            }
+
+            return results;
+        }
+
+        @NonNull
+        private ArrayList<String> listUnsizedKeys()
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s WHERE %s = 0",
+                UUDataCacheMetaData.NAME_COLUMN, UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.SIZE_COLUMN);
+
+            return listSingleStringColumn(sql, null);
+        }
+
+        private void decayAccessCounts()
+        {
+            String sql = String.format(Locale.US, "UPDATE %s SET %s = %s / 2 WHERE %s > 0",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.ACCESS_COUNT_COLUMN,
+                UUDataCacheMetaData.ACCESS_COUNT_COLUMN, UUDataCacheMetaData.ACCESS_COUNT_COLUMN);
+
+            execSql(sql);
+        }
+
+        @NonNull
+        private ArrayList<String> listEvictionCandidates(@NonNull final EvictionPolicy policy, final int limit)
+        {
+            String orderBy;
+
+            if (policy == EvictionPolicy.LFU)
+            {
+                orderBy = String.format(Locale.US, "%s, %s", UUDataCacheMetaData.ACCESS_COUNT_COLUMN, UUDataCacheMetaData.ACCESS_TIME_COLUMN);
+            }
+            else
+            {
+                orderBy = UUDataCacheMetaData.ACCESS_TIME_COLUMN;
+            }
+
+            String sql = String.format(Locale.US, "SELECT %s FROM %s ORDER BY %s LIMIT %d",
+                UUDataCacheMetaData.NAME_COLUMN, UUDataCacheMetaData.TABLE_NAME, orderBy, limit);
+
+            return listSingleStringColumn(sql, null);
+        }
+
+        /**
+         * Deletes the rows for a list of keys, skipping any that were rewritten after the cutoff
+         *
+         * @param keys keys to remove
+         * @param cutoff timestamp in milliseconds
+         */
+        private void removeExpiredMetaData(@NonNull final ArrayList<String> keys, final long cutoff)
+        {
+            // Leave room for the cutoff argument
+            int batchSize = UUSql.MAX_BOUND_STATEMENTS - 1;
+
+            for (int i = 0; i < keys.size(); i += batchSize)
+            {
+                ArrayList<String> batch = new ArrayList<>(keys.subList(i, Math.min(keys.size(), i + batchSize)));
+                UUSqlArgs args = UUSql.formatWhereInClause(UUDataCacheMetaData.NAME_COLUMN, batch);
+
+                String[] whereArgs = Arrays.copyOf(args.whereArgs, args.whereArgs.length + 1);
+                whereArgs[whereArgs.length - 1] = String.valueOf(cutoff);
+
+                delete(UUDataCacheMetaData.TABLE_NAME, args.where + " AND " + expiredWhereClause(), whereArgs);
+            }
+        }
+
+        /**
+         * Lists keys whose timestamp is at or before the cutoff, oldest first
+         *
+         * @param cutoff timestamp in milliseconds
+         * @param limit maximum number of keys to return, or zero for no limit
+         * @return list of keys
+         */
+        @NonNull
+        private ArrayList<String> listExpiredKeys(final long cutoff, final int limit)
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s WHERE %s",
+                UUDataCacheMetaData.NAME_COLUMN, UUDataCacheMetaData.TABLE_NAME, expiredWhereClause());
+
+            if (limit > 0)
+            {
+                sql += String.format(Locale.US, " ORDER BY %s LIMIT %d", UUDataCacheMetaData.TIMESTAMP_COLUMN, limit);
+            }
+
+            return listSingleStringColumn(sql, new String[] { String.valueOf(cutoff) });
         }
 
-        private void setMetaData(@NonNull final String key, @NonNull HashMap<String, Object> metaData)
+        @NonNull
+        private static String expiredWhereClause()
         {
-            UUDataCacheMetaData md = new UUDataCacheMetaData();
-            md.name = key;
-            md.timestamp = System.currentTimeMillis();
-            md.setMetaDataFromHashMap(metaData);
+            // A zero timestamp means the entry never expires
+            return String.format(Locale.US, "%s > 0 AND %s <= ?", UUDataCacheMetaData.TIMESTAMP_COLUMN, UUDataCacheMetaData.TIMESTAMP_COLUMN);
+        }
 
-            updateObject(UUDataCacheMetaData.class, md);
+        @Override
+        protected void handlePostOpen(@NonNull UUSQLiteDatabase db, int version)
+        {
+            db.execSQL(UUSql.buildCreateIndexSql(UUDataCacheMetaData.TABLE_NAME, TIMESTAMP_INDEX_NAME, UUDataCacheMetaData.TIMESTAMP_COLUMN), null);
+            db.execSQL(UUSql.buildCreateIndexSql(UUDataCacheMetaData.TABLE_NAME, ACCESS_TIME_INDEX_NAME, UUDataCacheMetaData.ACCESS_TIME_COLUMN), null);
         }
 
         private void clearAllMetaData()
@@ -521,7 +2307,7 @@ public class UUDataCache implements UUDataCacheProtocol
         }*/
     }
 
-    @UUSqlDatabase(name = "UUDataCacheDb", models = { UUDataCacheMetaData.class })
+    @UUSqlDatabase(name = "UUDataCacheDb", version = 3, models = { UUDataCacheMetaData.class })
     private static class UUDataCacheDbSchema implements UUDatabaseDefinition
     {
 
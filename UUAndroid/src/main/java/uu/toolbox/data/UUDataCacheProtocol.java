@@ -3,6 +3,9 @@ package uu.toolbox.data;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -31,6 +34,37 @@ public interface UUDataCacheProtocol
      */
     void setData(@NonNull byte[] data, @NonNull final String key);
 
+    /**
+     * Gets a read only buffer over cached data.  Large objects are memory mapped from disk rather
+     * than copied onto the heap.
+     *
+     * @param key lookup key
+     * @return a read only buffer, or null if the object does not exist.
+     */
+    @Nullable
+    ByteBuffer getMappedData(@NonNull final String key);
+
+    /**
+     * Opens a stream to read data from the cache without buffering the whole object in memory.
+     * Callers are responsible for closing the stream.
+     *
+     * @param key lookup key
+     * @return an input stream, or null if the object does not exist.
+     */
+    @Nullable
+    InputStream openInputStream(@NonNull final String key);
+
+    /**
+     * Opens a stream to write data to the cache without buffering the whole object in memory.
+     * The data replaces any existing object for the key when the stream is closed.  Callers are
+     * responsible for closing the stream.
+     *
+     * @param key lookup key
+     * @return an output stream, or null if the stream could not be opened.
+     */
+    @Nullable
+    OutputStream openOutputStream(@NonNull final String key);
+
     /**
      * Gets meta data associated with an object
      *
@@ -1,5 +1,8 @@
 package uu.toolbox.network;
 
+import android.net.Uri;
+import android.util.Pair;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -14,10 +17,18 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -42,6 +53,63 @@ import uu.toolbox.logging.UULog;
 @SuppressWarnings({"unused", "UnnecessaryToStringCall", "WeakerAccess"})
 public final class UUHttp
 {
+    /**
+     * Point in time view of requests waiting for or running on the executor
+     */
+    public static class Metrics
+    {
+        // Handed to the executor but not started yet
+        public int queuedRequests;
+
+        // Waiting because their host is at the per host limit
+        public int hostLimitedRequests;
+
+        public int activeRequests;
+        public HashMap<String, Integer> activeRequestsPerHost;
+        public long completedRequests;
+
+        // What happened to each connection when its request finished.  HttpURLConnection does
+        // not report whether the pool later hands a connection to another request, so these are
+        // an upper bound on reuse rather than a measure of it.
+
+        // Response read to the end and closed with keep alive on, so the connection went back
+        // to the pool
+        public long releasedConnections;
+
+        // Disconnected after an error, or the server sent Connection: close
+        public long closedConnections;
+
+        public float getReleaseRate()
+        {
+            long total = releasedConnections + closedConnections;
+            return (total > 0) ? ((float)releasedConnections / (float)total) : 0;
+        }
+    }
+
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+    private static final long DEFAULT_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // Platform HttpURLConnection pool defaults
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    private static final long DEFAULT_CONNECTION_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    private static Executor executor = createDefaultExecutor();
+    private static int maxRequestsPerHost = 0;
+
+    private static final Object hostLock = new Object();
+    private static final HashMap<String, Integer> activeRequestsPerHost = new HashMap<>();
+    private static final HashMap<String, ArrayDeque<Runnable>> hostLimitedRequests = new HashMap<>();
+    private static int queuedRequestCount = 0;
+    private static int activeRequestCount = 0;
+    private static long completedRequestCount = 0;
+
+    private static final Object connectionLock = new Object();
+    private static boolean keepAliveEnabled = true;
+    private static int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private static long connectionKeepAliveMillis = DEFAULT_CONNECTION_KEEP_ALIVE_MILLIS;
+    private static long releasedConnectionCount = 0;
+    private static long closedConnectionCount = 0;
+
     @NonNull
     public static UUHttpTask get(
             @NonNull final String url,
@@ -49,9 +117,7 @@ public final class UUHttp
             @NonNull final UUHttpDelegate delegate)
     {
         UUHttpRequest request = UUHttpRequest.get(url, queryArguments);
-        UUHttpTask task = new UUHttpTask(delegate);
-        task.execute(request);
-        return task;
+        return execute(request, delegate);
     }
 
     @NonNull
@@ -61,9 +127,7 @@ public final class UUHttp
             @NonNull final UUHttpDelegate delegate)
     {
         UUHttpRequest request = UUHttpRequest.delete(url, queryArguments);
-        UUHttpTask task = new UUHttpTask(delegate);
-        task.execute(request);
-        return task;
+        return execute(request, delegate);
     }
 
     @NonNull
@@ -75,9 +139,7 @@ public final class UUHttp
             @NonNull final UUHttpDelegate delegate)
     {
         UUHttpRequest request = UUHttpRequest.post(url, queryArguments, body, contentType);
-        UUHttpTask task = new UUHttpTask(delegate);
-        task.execute(request);
-        return task;
+        return execute(request, delegate);
     }
 
     @NonNull
@@ -89,9 +151,7 @@ public final class UUHttp
             @NonNull final UUHttpDelegate delegate)
     {
         UUHttpRequest request = UUHttpRequest.put(url, queryArguments, body, contentType);
-        UUHttpTask task = new UUHttpTask(delegate);
-        task.execute(request);
-        return task;
+        return execute(request, delegate);
     }
 
     @NonNull
@@ -102,9 +162,7 @@ public final class UUHttp
             @NonNull final UUHttpDelegate delegate)
     {
         UUHttpRequest request = UUHttpRequest.jsonPost(url, queryArguments, body);
-        UUHttpTask task = new UUHttpTask(delegate);
-        task.execute(request);
-        return task;
+        return execute(request, delegate);
     }
 
     @NonNull
@@ -115,9 +173,7 @@ public final class UUHttp
             @NonNull final UUHttpDelegate delegate)
     {
         UUHttpRequest request = UUHttpRequest.jsonPut(url, queryArguments, body);
-        UUHttpTask task = new UUHttpTask(delegate);
-        task.execute(request);
-        return task;
+        return execute(request, delegate);
     }
 
     @NonNull
@@ -125,10 +181,323 @@ public final class UUHttp
     public static UUHttpTask execute(@NonNull final UUHttpRequest request, @NonNull final UUHttpDelegate delegate)
     {
         UUHttpTask task = new UUHttpTask(delegate);
-        task.execute(request);
+        task.executeOnExecutor(new HostExecutor(hostForRequest(request)), request);
         return task;
     }
 
+    @NonNull
+    public static synchronized Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Sets the executor requests run on.  The default is a pool of up to eight threads, so
+     * requests to different servers do not wait on each other.  Requests already handed to the
+     * old executor finish there.
+     *
+     * @param executor the executor
+     */
+    public static synchronized void setExecutor(@NonNull final Executor executor)
+    {
+        UUHttp.executor = executor;
+    }
+
+    public static int getMaxRequestsPerHost()
+    {
+        synchronized (hostLock)
+        {
+            return maxRequestsPerHost;
+        }
+    }
+
+    /**
+     * Sets how many requests to a single host may run at once.  Further requests to that host wait
+     * without holding an executor thread.
+     *
+     * @param maxRequestsPerHost max requests per host, or zero for no limit
+     */
+    public static void setMaxRequestsPerHost(final int maxRequestsPerHost)
+    {
+        synchronized (hostLock)
+        {
+            UUHttp.maxRequestsPerHost = maxRequestsPerHost;
+        }
+
+        dispatchHostLimitedRequests();
+    }
+
+    @NonNull
+    public static Metrics getMetrics()
+    {
+        Metrics metrics = new Metrics();
+
+        synchronized (hostLock)
+        {
+            metrics.queuedRequests = queuedRequestCount;
+            metrics.activeRequests = activeRequestCount;
+            metrics.completedRequests = completedRequestCount;
+            metrics.activeRequestsPerHost = new HashMap<>(activeRequestsPerHost);
+
+            for (ArrayDeque<Runnable> waiting : hostLimitedRequests.values())
+            {
+                metrics.hostLimitedRequests += waiting.size();
+            }
+        }
+
+        synchronized (connectionLock)
+        {
+            metrics.releasedConnections = releasedConnectionCount;
+            metrics.closedConnections = closedConnectionCount;
+        }
+
+        return metrics;
+    }
+
+    public static boolean isKeepAliveEnabled()
+    {
+        synchronized (connectionLock)
+        {
+            return keepAliveEnabled;
+        }
+    }
+
+    public static int getMaxIdleConnections()
+    {
+        synchronized (connectionLock)
+        {
+            return maxIdleConnections;
+        }
+    }
+
+    public static long getConnectionKeepAlive()
+    {
+        synchronized (connectionLock)
+        {
+            return connectionKeepAliveMillis;
+        }
+    }
+
+    /**
+     * Configures the platform HTTP connection pool through the http.keepAlive,
+     * http.maxConnections and http.keepAliveDuration system properties.  The pool reads these
+     * when it is created, so call this before the first request is made.
+     *
+     * On Android http.maxConnections is the number of idle connections the pool keeps across all
+     * hosts, not per host.
+     *
+     * @param keepAlive true to keep connections open for reuse after a request completes
+     * @param maxIdleConnections max idle connections kept in the pool, shared by all hosts
+     * @param keepAliveMillis how long an idle connection is kept before it is closed
+     */
+    public static void configureConnectionPool(final boolean keepAlive, final int maxIdleConnections, final long keepAliveMillis)
+    {
+        synchronized (connectionLock)
+        {
+            UUHttp.keepAliveEnabled = keepAlive;
+            UUHttp.maxIdleConnections = Math.max(0, maxIdleConnections);
+            UUHttp.connectionKeepAliveMillis = Math.max(0, keepAliveMillis);
+        }
+
+        try
+        {
+            System.setProperty("http.keepAlive", String.valueOf(keepAlive));
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(0, maxIdleConnections)));
+            System.setProperty("http.keepAliveDuration", String.valueOf(Math.max(0, keepAliveMillis)));
+        }
+        catch (Exception ex)
+        {
+            UULog.error(UUHttp.class, "configureConnectionPool", ex);
+        }
+    }
+
+    public static void resetConnectionMetrics()
+    {
+        synchronized (connectionLock)
+        {
+            releasedConnectionCount = 0;
+            closedConnectionCount = 0;
+        }
+    }
+
+    @NonNull
+    private static Executor createDefaultExecutor()
+    {
+        final AtomicInteger threadCounter = new AtomicInteger();
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS,
+            DEFAULT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> new Thread(r, "UUHttp-" + threadCounter.incrementAndGet()));
+
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    @NonNull
+    private static String hostForRequest(@NonNull final UUHttpRequest request)
+    {
+        String host = null;
+
+        try
+        {
+            host = Uri.parse(request.getURL()).getHost();
+        }
+        catch (Exception ex)
+        {
+            UULog.debug(UUHttp.class, "hostForRequest", ex);
+        }
+
+        return (host != null) ? host : "";
+    }
+
+    private static void submitForHost(@NonNull final String host, @NonNull final Runnable runnable)
+    {
+        synchronized (hostLock)
+        {
+            Integer active = activeRequestsPerHost.get(host);
+            if (maxRequestsPerHost > 0 && active != null && active >= maxRequestsPerHost)
+            {
+                ArrayDeque<Runnable> waiting = hostLimitedRequests.get(host);
+                if (waiting == null)
+                {
+                    waiting = new ArrayDeque<>();
+                    hostLimitedRequests.put(host, waiting);
+                }
+
+                waiting.add(runnable);
+                return;
+            }
+
+            activeRequestsPerHost.put(host, (active != null) ? active + 1 : 1);
+            ++queuedRequestCount;
+        }
+
+        getExecutor().execute(() -> runForHost(host, runnable));
+    }
+
+    private static void runForHost(@NonNull final String host, @NonNull final Runnable runnable)
+    {
+        synchronized (hostLock)
+        {
+            --queuedRequestCount;
+            ++activeRequestCount;
+        }
+
+        try
+        {
+            runnable.run();
+        }
+        finally
+        {
+            synchronized (hostLock)
+            {
+                --activeRequestCount;
+                ++completedRequestCount;
+
+                Integer active = activeRequestsPerHost.get(host);
+                if (active == null || active <= 1)
+                {
+                    activeRequestsPerHost.remove(host);
+                }
+                else
+                {
+                    activeRequestsPerHost.put(host, active - 1);
+                }
+            }
+
+            dispatchHostLimitedRequests();
+        }
+    }
+
+    // Starts waiting requests for any host that is now under its limit
+    private static void dispatchHostLimitedRequests()
+    {
+        ArrayList<Pair<String, Runnable>> ready = new ArrayList<>();
+
+        synchronized (hostLock)
+        {
+            Iterator<Map.Entry<String, ArrayDeque<Runnable>>> iterator = hostLimitedRequests.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                Map.Entry<String, ArrayDeque<Runnable>> entry = iterator.next();
+                String host = entry.getKey();
+                ArrayDeque<Runnable> waiting = entry.getValue();
+
+                Integer active = activeRequestsPerHost.get(host);
+                int count = (active != null) ? active : 0;
+
+                while (!waiting.isEmpty() && (maxRequestsPerHost <= 0 || count < maxRequestsPerHost))
+                {
+                    ready.add(new Pair<>(host, waiting.poll()));
+                    ++count;
+                    ++queuedRequestCount;
+                }
+
+                // Drop idle hosts so the map only holds hosts with requests in flight
+                if (count > 0)
+                {
+                    activeRequestsPerHost.put(host, count);
+                }
+                else
+                {
+                    activeRequestsPerHost.remove(host);
+                }
+
+                if (waiting.isEmpty())
+                {
+                    iterator.remove();
+                }
+            }
+        }
+
+        for (Pair<String, Runnable> next : ready)
+        {
+            getExecutor().execute(() -> runForHost(next.first, next.second));
+        }
+    }
+
+    private static void recordConnectionFinished(final boolean released)
+    {
+        synchronized (connectionLock)
+        {
+            if (released)
+            {
+                ++releasedConnectionCount;
+            }
+            else
+            {
+                ++closedConnectionCount;
+            }
+        }
+    }
+
+    // The pool only keeps a connection if keep alive is on and the server did not ask to close it
+    private static boolean isConnectionReusable(@NonNull final HttpURLConnection connection)
+    {
+        return isKeepAliveEnabled() && !"close".equalsIgnoreCase(connection.getHeaderField("Connection"));
+    }
+
+    /**
+     * Executor handed to AsyncTask for a single request, so the request counts against its host
+     */
+    private static class HostExecutor implements Executor
+    {
+        private final String host;
+
+        HostExecutor(@NonNull final String host)
+        {
+            this.host = host;
+        }
+
+        @Override
+        public void execute(@NonNull final Runnable runnable)
+        {
+            submitForHost(host, runnable);
+        }
+    }
+
     @NonNull
     @SuppressWarnings("ConstantConditions")
     protected static UUHttpResponse executeRequest(@NonNull final UUHttpRequest request)
@@ -227,11 +596,19 @@ public final class UUHttp
             UULog.debug(UUHttp.class, "executeRequest", "Response Content-Type:" + response.getContentType());
             UULog.debug(UUHttp.class, "executeRequest", "Response Content-Encoding: " + response.getContentEncoding());
 
-            long start = System.currentTimeMillis();
-            byte[] responseBuffer = readResponse(urlConnection);
-            response.setRawResponse(responseBuffer);
-            response.parseResponse();
             response.setResponseHeaders(safeGetResponseHeaderes(urlConnection));
+
+            OutputStream stream = openResponseStream(request, response);
+            if (stream != null)
+            {
+                streamResponse(urlConnection, response, request.getResponseStreamHandler(), stream);
+            }
+            else
+            {
+                byte[] responseBuffer = readResponse(urlConnection);
+                response.setRawResponse(responseBuffer);
+                response.parseResponse();
+            }
         }
         catch (Exception ex)
         {
@@ -240,9 +617,20 @@ public final class UUHttp
         }
         finally
         {
+            // Disconnecting closes the socket, so only do it when the connection may be left in
+            // a bad state.  Otherwise the response was read to the end and closed, and the
+            // connection goes back to the pool unless the server asked for it to be closed.
             if (urlConnection != null)
             {
-                urlConnection.disconnect();
+                if (response.getException() != null)
+                {
+                    urlConnection.disconnect();
+                    recordConnectionFinished(false);
+                }
+                else
+                {
+                    recordConnectionFinished(isConnectionReusable(urlConnection));
+                }
             }
         }
 
@@ -436,34 +824,116 @@ public final class UUHttp
         }
     }
 
-    protected static byte[] readResponse(final HttpURLConnection connection) throws IOException
+    @Nullable
+    private static OutputStream openResponseStream(@NonNull final UUHttpRequest request, @NonNull final UUHttpResponse response) throws IOException
     {
-        InputStream in;
+        UUHttpResponseStreamHandler handler = request.getResponseStreamHandler();
+        int responseCode = response.getHttpResponseCode();
 
-        if (connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST)
+        if (handler == null || responseCode < HttpURLConnection.HTTP_OK || responseCode >= HttpURLConnection.HTTP_MULT_CHOICE)
         {
-            in = new BufferedInputStream(connection.getErrorStream());
+            return null;
         }
-        else
+
+        return handler.openResponseStream(response);
+    }
+
+    protected static void streamResponse(
+            @NonNull final HttpURLConnection connection,
+            @NonNull final UUHttpResponse response,
+            @NonNull final UUHttpResponseStreamHandler handler,
+            @NonNull final OutputStream stream) throws IOException
+    {
+        boolean success = false;
+        InputStream in = null;
+
+        try
         {
             in = new BufferedInputStream(connection.getInputStream());
-        }
+            long contentLength = connection.getContentLength();
+            long totalBytesRead = 0;
+            int bytesRead;
 
-        int bytesRead;
+            byte[] buffer = new byte[10240];
 
-        byte[] buffer = new byte[10240];
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            while (true)
+            {
+                bytesRead = in.read(buffer, 0, buffer.length);
+                if (bytesRead == -1)
+                    break;
 
-        while (true)
+                stream.write(buffer, 0, bytesRead);
+                totalBytesRead += bytesRead;
+                handler.onResponseProgress(response, totalBytesRead, contentLength);
+            }
+
+            response.setStreamedLength(totalBytesRead);
+            success = true;
+        }
+        finally
         {
-            bytesRead = in.read(buffer, 0, buffer.length);
-            if (bytesRead == -1)
-                break;
+            closeResponseInputStream(in);
+            handler.closeResponseStream(stream, success);
+        }
+    }
 
-            //AppLog.debug(UUHttp.class, "readResponse", "Read " + bytesRead + " bytes");
-            bos.write(buffer, 0, bytesRead);
+    protected static byte[] readResponse(final HttpURLConnection connection) throws IOException
+    {
+        InputStream in = null;
+
+        try
+        {
+            if (connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST)
+            {
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream == null)
+                {
+                    return new byte[0];
+                }
+
+                in = new BufferedInputStream(errorStream);
+            }
+            else
+            {
+                in = new BufferedInputStream(connection.getInputStream());
+            }
+
+            int bytesRead;
+
+            byte[] buffer = new byte[10240];
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+            while (true)
+            {
+                bytesRead = in.read(buffer, 0, buffer.length);
+                if (bytesRead == -1)
+                    break;
+
+                //AppLog.debug(UUHttp.class, "readResponse", "Read " + bytesRead + " bytes");
+                bos.write(buffer, 0, bytesRead);
+            }
+
+            return bos.toByteArray();
         }
+        finally
+        {
+            closeResponseInputStream(in);
+        }
+    }
 
-        return bos.toByteArray();
+    // Closing a response stream that was read to the end releases its connection for reuse
+    private static void closeResponseInputStream(@Nullable final InputStream in)
+    {
+        if (in != null)
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException ex)
+            {
+                UULog.debug(UUHttp.class, "closeResponseInputStream", ex);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -41,6 +41,7 @@ public class UUHttpRequest
     //private boolean processMimeTypes = true;
     private boolean gzipCompression = false;
     private UUHttpResponseParser responseParser = new UUJsonResponseParser();
+    private UUHttpResponseStreamHandler responseStreamHandler;
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Construction
@@ -234,6 +235,22 @@ public class UUHttpRequest
         this.responseParser = responseParser;
     }
 
+    public UUHttpResponseStreamHandler getResponseStreamHandler()
+    {
+        return responseStreamHandler;
+    }
+
+    /**
+     * Sets a handler that receives a successful response body as it is read, instead of it being
+     * buffered into the raw response.
+     *
+     * @param responseStreamHandler stream handler, or null to buffer the response
+     */
+    public void setResponseStreamHandler(UUHttpResponseStreamHandler responseStreamHandler)
+    {
+        this.responseStreamHandler = responseStreamHandler;
+    }
+
     @NonNull
     public String buildFullUrlString()
     {
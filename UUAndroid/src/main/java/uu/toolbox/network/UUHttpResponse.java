@@ -26,6 +26,7 @@ public class UUHttpResponse
     protected Exception _exception;
     protected Object _parsedResponse;
     protected byte[] _rawResponse;
+    protected long _streamedLength = -1;
     protected int _httpResponseCode;
     protected String _httpResponseMessage;
     protected String _contentType;
@@ -43,6 +44,7 @@ public class UUHttpResponse
         _exception = other._exception;
         _parsedResponse = other._parsedResponse;
         _rawResponse = other._rawResponse;
+        _streamedLength = other._streamedLength;
         _httpResponseCode = other._httpResponseCode;
         _httpResponseMessage = other._httpResponseMessage;
         _contentType = other._contentType;
@@ -90,6 +92,26 @@ public class UUHttpResponse
         _rawResponse = rawResponse;
     }
 
+    /**
+     * Gets the number of bytes written to the request's response stream handler
+     *
+     * @return streamed body length, or -1 if the body was not streamed
+     */
+    public long getStreamedLength()
+    {
+        return _streamedLength;
+    }
+
+    public void setStreamedLength(final long streamedLength)
+    {
+        _streamedLength = streamedLength;
+    }
+
+    public boolean wasStreamed()
+    {
+        return (_streamedLength >= 0);
+    }
+
     public int getHttpResponseCode()
     {
         return _httpResponseCode;
@@ -144,9 +166,23 @@ public class UUHttpResponse
     {
         String value = null;
 
-        if (_responseHeaders != null && _responseHeaders.containsKey(key))
+        if (_responseHeaders != null && key != null)
         {
             List<String> values = _responseHeaders.get(key);
+
+            if (values == null)
+            {
+                // Header names are case insensitive
+                for (Map.Entry<String, List<String>> entry : _responseHeaders.entrySet())
+                {
+                    if (key.equalsIgnoreCase(entry.getKey()))
+                    {
+                        values = entry.getValue();
+                        break;
+                    }
+                }
+            }
+
             if (values != null && values.size() > 0)
             {
                 value = values.get(0);
@@ -0,0 +1,46 @@
+package uu.toolbox.network;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * UUHttpResponseStreamHandler
+ *
+ * Useful Utilities - Receives a successful response body as it is read from the network, instead
+ * of it being buffered in memory.  A request may be attempted more than once, and each attempt
+ * opens a new stream.
+ */
+public interface UUHttpResponseStreamHandler
+{
+    /**
+     * Opens the destination for a response body.  Called once the response code and headers are
+     * available for a successful response.
+     *
+     * @param response the response being read
+     * @return the stream to write the body to, or null to read the body into memory as usual
+     * @throws IOException if the stream cannot be opened
+     */
+    @Nullable
+    OutputStream openResponseStream(@NonNull final UUHttpResponse response) throws IOException;
+
+    /**
+     * Called after each chunk of the body is written to the stream
+     *
+     * @param response the response being read
+     * @param bytesRead total bytes read so far
+     * @param contentLength expected body length, or -1 if unknown
+     */
+    void onResponseProgress(@NonNull final UUHttpResponse response, final long bytesRead, final long contentLength);
+
+    /**
+     * Called once for every stream that was opened.
+     *
+     * @param stream the stream returned from openResponseStream
+     * @param success true if the whole body was written, false if the read failed
+     * @throws IOException if the body could not be committed
+     */
+    void closeResponseStream(@NonNull final OutputStream stream, final boolean success) throws IOException;
+}
@@ -3,29 +3,52 @@ package uu.toolbox.network;
 import android.content.Context;
 import android.content.Intent;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import uu.toolbox.core.UUDate;
 import uu.toolbox.core.UUNonNullObjectDelegate;
+import uu.toolbox.core.UUObjectDelegate;
 import uu.toolbox.core.UUString;
+import uu.toolbox.core.UUTimer;
+import uu.toolbox.core.UUWorkerThread;
 import uu.toolbox.data.UUDataCache;
 import uu.toolbox.logging.UULog;
 
 public class UURemoteData implements UURemoteDataProtocol
 {
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public static final long DEFAULT_MAX_STALE_AGE = UUDate.MILLIS_IN_ONE_DAY;
+    public static final long DEFAULT_INITIAL_RETRY_DELAY = 5 * UUDate.MILLIS_IN_ONE_SECOND;
+
+    // Number of failing keys remembered, least recently failed or requested are forgotten first
+    private static final int MAX_FAILURE_TABLE_SIZE = 256;
+
     public static class MetaData extends UUDataCache.MetaData
     {
         public static final String MimeType = "MimeType";
         public static final String DownloadTimestamp = "DownloadTimestamp";
+        public static final String ETag = "ETag";
+        public static final String LastModified = "LastModified";
     }
 
     public class Notifications
@@ -44,6 +67,38 @@ public class UURemoteData implements UURemoteDataProtocol
     {
         public byte[] data;
         public String mimeType;
+        public String eTag;
+        public String lastModified;
+
+        // True when the server confirmed the cached copy is still current
+        public boolean notModified;
+
+        // True when the body was written straight to the cache instead of into data
+        public boolean streamed;
+
+        // Size of the downloaded body in bytes
+        public long length;
+    }
+
+    /**
+     * Point in time view of the download scheduler, for debugging
+     */
+    public static class Diagnostics
+    {
+        // Queued keys, in the order they would be started
+        public ArrayList<String> queuedKeys;
+        public ArrayList<String> activeKeys;
+
+        // Keys waiting for their retry back off to elapse
+        public ArrayList<String> deferredKeys;
+        public HashMap<String, Integer> activeDownloadsPerHost;
+        public int listenerCount;
+        public int failureCount;
+
+        // How long the scheduler lock has been held by the request paths
+        public long lockHoldCount;
+        public long lockHoldTotalNanos;
+        public long lockHoldMaxNanos;
     }
 
     public interface UURemoteDataReceiver
@@ -51,6 +106,34 @@ public class UURemoteData implements UURemoteDataProtocol
         boolean hasRemoteData(@NonNull final String remotePath);
     }
 
+    public interface DownloadProgressDelegate
+    {
+        /**
+         * Called from the download thread as a streamed download is written to the cache
+         *
+         * @param key remote path being downloaded
+         * @param bytesDownloaded bytes written so far
+         * @param contentLength expected download size, or -1 if unknown
+         */
+        void onDownloadProgress(@NonNull final String key, final long bytesDownloaded, final long contentLength);
+    }
+
+    /**
+     * Download priority.  Queued requests are started highest priority first, and most recently
+     * requested first within a priority.
+     */
+    public enum Priority
+    {
+        // Needed for content that is currently on screen
+        VISIBLE,
+
+        // Likely to be needed soon, such as content just off screen
+        PREFETCH,
+
+        // Opportunistic downloads
+        BACKGROUND
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Singleton Interface
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -78,13 +161,44 @@ public class UURemoteData implements UURemoteDataProtocol
     }
 
     private LocalBroadcastManager broadcastManager;
-    private final HashMap<String, Boolean> activeDownloads = new HashMap<>();
-    private final Deque<String> queuedDownloadRequests = new ArrayDeque<>();
-    private final HashMap<String, Long> lastFailureTimes = new HashMap<>();
-
+    private final HashMap<String, String> activeDownloads = new HashMap<>();
+    private final HashMap<String, Integer> activeDownloadsPerHost = new HashMap<>();
+    private final RequestQueue queuedDownloadRequests = new RequestQueue();
+    private final HashMap<String, QueuedRequest> deferredRequests = new HashMap<>();
+    private final LinkedHashMap<String, FailureRecord> failureTable = new LinkedHashMap<String, FailureRecord>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FailureRecord> eldest)
+        {
+            return size() > MAX_FAILURE_TABLE_SIZE;
+        }
+    };
+
+    private final String retryTimerId = "UURemoteData.Retry." + System.identityHashCode(this);
+    private final Random random = new Random();
+    private final HashMap<String, ArrayList<UUObjectDelegate<byte[]>>> downloadListeners = new HashMap<>();
+    private final HashMap<String, PrefetchBudget> prefetchBudgets = new HashMap<>();
+    private final HashMap<String, String> activePrefetchTags = new HashMap<>();
+
+    // Prefetch batches still being checked against the cache, removed when queued or cancelled
+    private final HashSet<String> pendingPrefetchTags = new HashSet<>();
+    private static final UUWorkerThread prefetchThread = new UUWorkerThread("UURemoteDataPrefetch");
+    private int prefetchCounter = 0;
+    private boolean broadcastNotificationsEnabled = true;
+    private boolean staleWhileRevalidateEnabled = false;
+    private long maxStaleAge = DEFAULT_MAX_STALE_AGE;
+    private boolean streamingDownloadsEnabled = false;
+    private DownloadProgressDelegate downloadProgressDelegate;
+
+    // Only touched while holding the lock
+    private long lockHoldCount = 0;
+    private long lockHoldTotalNanos = 0;
+    private long lockHoldMaxNanos = 0;
 
     private int maxDownloadRequests = 5;
+    private int maxDownloadRequestsPerHost = 0;
     private long failedDownloadIgnoreTime = 15 * UUDate.MILLIS_IN_ONE_MINUTE;
+    private long initialRetryDelay = DEFAULT_INITIAL_RETRY_DELAY;
 
     public UURemoteData(@NonNull final Context context)
     {
@@ -94,31 +208,237 @@ public class UURemoteData implements UURemoteDataProtocol
     @Nullable
     @Override
     public byte[] getData(@NonNull final String key)
+    {
+        return getData(key, Priority.VISIBLE, null);
+    }
+
+    /**
+     * Fetches data from the cache, queueing a download if it does not exist
+     *
+     * @param key lookup key
+     * @param priority priority of the download if one is needed
+     * @param tag optional tag that can be used to cancel a group of requests
+     * @return data from the cache, or null if the object does not exist.
+     */
+    @Nullable
+    public byte[] getData(@NonNull final String key, @NonNull final Priority priority, @Nullable final String tag)
+    {
+        return getData(key, priority, tag, null);
+    }
+
+    /**
+     * Fetches data from the cache, queueing a download if it does not exist
+     *
+     * @param key lookup key
+     * @param listener invoked on the main thread with the downloaded data, or null if the download fails
+     * @return data from the cache, or null if the object does not exist.  The listener is only
+     * invoked when null is returned.
+     */
+    @Nullable
+    public byte[] getData(@NonNull final String key, @Nullable final UUObjectDelegate<byte[]> listener)
+    {
+        return getData(key, Priority.VISIBLE, null, listener);
+    }
+
+    /**
+     * Fetches data from the cache, queueing a download if it does not exist.  Concurrent requests
+     * for the same key share a single download, and every listener receives the result.
+     *
+     * @param key lookup key
+     * @param priority priority of the download if one is needed
+     * @param tag optional tag that can be used to cancel a group of requests
+     * @param listener invoked on the main thread with the downloaded data, or null if the download
+     *                 fails or is cancelled
+     * @return data from the cache, or null if the object does not exist.  The listener is only
+     * invoked when null is returned.
+     */
+    @Nullable
+    public byte[] getData(
+        @NonNull final String key,
+        @NonNull final Priority priority,
+        @Nullable final String tag,
+        @Nullable final UUObjectDelegate<byte[]> listener)
     {
         try
         {
             if (!checkUrl(key))
             {
+                UUObjectDelegate.safeInvokeOnMainThread(listener, null);
                 return null;
             }
 
-            byte[] data = UUDataCache.sharedInstance().getData(key);
+            UUDataCache dataCache = UUDataCache.sharedInstance();
+
+            if (dataCache.isDataExpired(key))
+            {
+                if (staleWhileRevalidateEnabled && isWithinMaxStaleAge(key))
+                {
+                    byte[] stale = dataCache.getDataIgnoringExpiration(key);
+                    if (stale != null)
+                    {
+                        // Refreshed data is announced the same way as any other download
+                        queueDownloadRequest(key, priority, tag);
+                        return stale;
+                    }
+                }
+
+                // Expired entries that can be revalidated are kept so a conditional request can be made
+                if (hasValidators(key) && dataCache.doesDataExist(key))
+                {
+                    addListener(key, listener);
+                    queueDownloadRequest(key, priority, tag);
+                    return null;
+                }
+            }
+
+            byte[] data = dataCache.getData(key);
             if (data != null)
             {
                 return data;
             }
 
-            queueDownloadRequest(key);
+            addListener(key, listener);
+            queueDownloadRequest(key, priority, tag);
         }
         catch (Exception ex)
         {
             UULog.error(getClass(), "getData", ex);
+            notifyListeners(key, null);
             return null;
         }
 
         return null;
     }
 
+    /**
+     * Detaches a listener passed to getData, for example when the view waiting on the data is
+     * recycled.  The download itself is not cancelled.
+     *
+     * @param key lookup key
+     * @param listener the listener to remove
+     * @return true if the listener was attached
+     */
+    public synchronized boolean removeListener(@NonNull final String key, @NonNull final UUObjectDelegate<byte[]> listener)
+    {
+        ArrayList<UUObjectDelegate<byte[]>> list = downloadListeners.get(key);
+        if (list == null)
+        {
+            return false;
+        }
+
+        boolean removed = list.remove(listener);
+        if (list.isEmpty())
+        {
+            downloadListeners.remove(key);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Whether DataDownloaded and DataDownloadFailed broadcasts are sent.  Apps that only use
+     * listeners can turn these off to avoid the broadcast fan out.
+     *
+     * @return true if broadcasts are sent
+     */
+    public boolean areBroadcastNotificationsEnabled()
+    {
+        return broadcastNotificationsEnabled;
+    }
+
+    public void setBroadcastNotificationsEnabled(final boolean enabled)
+    {
+        broadcastNotificationsEnabled = enabled;
+    }
+
+    /**
+     * Whether getData returns expired data while a refresh is downloaded in the background
+     *
+     * @return true if stale data is returned
+     */
+    public boolean isStaleWhileRevalidateEnabled()
+    {
+        return staleWhileRevalidateEnabled;
+    }
+
+    /**
+     * Sets whether getData returns expired data while a refresh is downloaded in the background.
+     * When the refresh completes, listeners are not invoked since the caller already has data,
+     * but the DataDownloaded broadcast is sent.
+     *
+     * @param enabled true to return stale data
+     */
+    public void setStaleWhileRevalidateEnabled(final boolean enabled)
+    {
+        staleWhileRevalidateEnabled = enabled;
+    }
+
+    /**
+     * Gets how long past its expiration data may still be returned when stale while revalidate
+     * is enabled
+     *
+     * @return max stale age in milliseconds, or zero for no limit
+     */
+    public long getMaxStaleAge()
+    {
+        return maxStaleAge;
+    }
+
+    public void setMaxStaleAge(final long maxStaleAge)
+    {
+        this.maxStaleAge = maxStaleAge;
+    }
+
+    /**
+     * Whether downloads are written straight to the cache as they are read
+     *
+     * @return true if downloads are streamed
+     */
+    public boolean isStreamingDownloadsEnabled()
+    {
+        return streamingDownloadsEnabled;
+    }
+
+    /**
+     * Sets whether downloads are written straight to the cache as they are read, rather than
+     * being buffered in memory first.  The cache entry is only replaced once the whole body has
+     * been read.  Listeners are still handed the data, which is read back from the cache.
+     *
+     * @param enabled true to stream downloads
+     */
+    public void setStreamingDownloadsEnabled(final boolean enabled)
+    {
+        streamingDownloadsEnabled = enabled;
+    }
+
+    @Nullable
+    public DownloadProgressDelegate getDownloadProgressDelegate()
+    {
+        return downloadProgressDelegate;
+    }
+
+    /**
+     * Sets a delegate that is notified as streamed downloads are written to the cache
+     *
+     * @param delegate progress delegate, or null to stop receiving progress
+     */
+    public void setDownloadProgressDelegate(@Nullable final DownloadProgressDelegate delegate)
+    {
+        downloadProgressDelegate = delegate;
+    }
+
+    private boolean isWithinMaxStaleAge(@NonNull final String key)
+    {
+        if (maxStaleAge <= 0)
+        {
+            return true;
+        }
+
+        UUDataCache dataCache = UUDataCache.sharedInstance();
+        long expiredAt = dataCache.getTimestamp(key) + dataCache.getDataExpirationInterval();
+        return (System.currentTimeMillis() - expiredAt) <= maxStaleAge;
+    }
+
     protected boolean checkUrl(@NonNull final String key)
     {
         try
@@ -145,6 +465,13 @@ public class UURemoteData implements UURemoteDataProtocol
     {
         UUHttpRequest request = UUHttpRequest.get(key, null);
         request.setResponseParser(null);
+        addValidatorHeaders(request, key);
+
+        if (streamingDownloadsEnabled)
+        {
+            request.setResponseStreamHandler(new CacheStreamHandler(key));
+        }
+
         UUHttp.execute(request, response ->
         {
             DataResponse dataResponse = new DataResponse();
@@ -154,10 +481,27 @@ public class UURemoteData implements UURemoteDataProtocol
                 Exception ex = response.getException();
                 byte[] rawResponse = response.getRawResponse();
 
-                if (ex == null && rawResponse != null)
+                if (ex == null && response.getHttpResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+                {
+                    dataResponse.notModified = true;
+                    dataResponse.eTag = response.getResponseHeader(HEADER_ETAG);
+                    dataResponse.lastModified = response.getResponseHeader(HEADER_LAST_MODIFIED);
+                }
+                else if (ex == null && response.wasStreamed())
+                {
+                    dataResponse.streamed = true;
+                    dataResponse.length = response.getStreamedLength();
+                    dataResponse.mimeType = response.getContentType();
+                    dataResponse.eTag = response.getResponseHeader(HEADER_ETAG);
+                    dataResponse.lastModified = response.getResponseHeader(HEADER_LAST_MODIFIED);
+                }
+                else if (ex == null && rawResponse != null)
                 {
                     dataResponse.data = response.getRawResponse();
+                    dataResponse.length = rawResponse.length;
                     dataResponse.mimeType = response.getContentType();
+                    dataResponse.eTag = response.getResponseHeader(HEADER_ETAG);
+                    dataResponse.lastModified = response.getResponseHeader(HEADER_LAST_MODIFIED);
                 }
                 else
                 {
@@ -176,27 +520,75 @@ public class UURemoteData implements UURemoteDataProtocol
         });
     }
 
-    private synchronized void queueDownloadRequest(@NonNull final String key)
+    private void queueDownloadRequest(@NonNull final String key, @NonNull final Priority priority, @Nullable final String tag)
     {
-        logQueue("Before Push");
-        queuedDownloadRequests.remove(key);
-        queuedDownloadRequests.push(key);
-        logQueue("After Push");
+        String host = hostForKey(key);
+        boolean deferred = false;
+
+        synchronized (this)
+        {
+            long acquired = System.nanoTime();
+
+            try
+            {
+                // Already downloading, the caller's listener is attached and gets that result
+                if (activeDownloads.containsKey(key))
+                {
+                    // The caller needs this download, so it no longer counts against a prefetch
+                    String prefetchTag = activePrefetchTags.remove(key);
+                    if (prefetchTag != null)
+                    {
+                        releasePrefetchBudgetIfDone(prefetchTag);
+                    }
+
+                    return;
+                }
+
+                if (isBackingOff(key, System.currentTimeMillis()))
+                {
+                    queuedDownloadRequests.remove(key);
+                    deferredRequests.put(key, new QueuedRequest(key, host, priority, tag));
+                    deferred = true;
+                }
+                else
+                {
+                    deferredRequests.remove(key);
+
+                    String previousTag = queuedDownloadRequests.push(key, host, priority, tag);
+                    if (previousTag != null && !previousTag.equals(tag) && prefetchBudgets.containsKey(previousTag))
+                    {
+                        releasePrefetchBudgetIfDone(previousTag);
+                    }
+                }
+            }
+            finally
+            {
+                recordLockHold(acquired);
+            }
+        }
+
+        if (deferred)
+        {
+            scheduleRetryTimer();
+
+            // Listeners are not left waiting on a download that may not start for a long time
+            notifyListeners(key, null);
+            return;
+        }
 
         processDownloadRequests();
     }
 
-    private synchronized void logQueue(@NonNull final String message)
+    @NonNull
+    private static String hostForKey(@NonNull final String key)
     {
-        UULog.debug(getClass(), "logQueue", message + ", There are " + queuedDownloadRequests.size() + " items in the download queue.");
-
-        Iterator<String> iterator = queuedDownloadRequests.descendingIterator();
-        int i = 0;
-
-        while (iterator.hasNext())
+        try
+        {
+            return new URL(key).getHost();
+        }
+        catch (Exception ex)
         {
-            String next = iterator.next();
-            UULog.debug(getClass(), "logQueue", message + ", " + i + ": " + next);
+            return "";
         }
     }
 
@@ -205,14 +597,43 @@ public class UURemoteData implements UURemoteDataProtocol
         return activeDownloads.size();
     }
 
-    private synchronized void addActiveRequest(@NonNull final String key)
+    // Must be called while holding the lock
+    private void addActiveRequest(@NonNull final String key, @NonNull final String host)
     {
-        activeDownloads.put(key, Boolean.TRUE);
+        activeDownloads.put(key, host);
+
+        Integer count = activeDownloadsPerHost.get(host);
+        activeDownloadsPerHost.put(host, (count != null) ? count + 1 : 1);
     }
 
-    private synchronized void removeActiveRequest(@NonNull final String key)
+    private void removeActiveRequest(@NonNull final String key)
     {
-        activeDownloads.remove(key);
+        synchronized (this)
+        {
+            long acquired = System.nanoTime();
+
+            try
+            {
+                String host = activeDownloads.remove(key);
+                if (host != null)
+                {
+                    Integer count = activeDownloadsPerHost.get(host);
+                    if (count == null || count <= 1)
+                    {
+                        activeDownloadsPerHost.remove(host);
+                    }
+                    else
+                    {
+                        activeDownloadsPerHost.put(host, count - 1);
+                    }
+                }
+            }
+            finally
+            {
+                recordLockHold(acquired);
+            }
+        }
+
         processDownloadRequests();
     }
 
@@ -226,175 +647,1270 @@ public class UURemoteData implements UURemoteDataProtocol
         this.maxDownloadRequests = maxDownloadRequests;
     }
 
-    @Nullable
-    private synchronized String dequeueRequest()
+    /**
+     * Gets the maximum number of simultaneous downloads from a single host
+     *
+     * @return max downloads per host, or zero if only the overall limit applies
+     */
+    public int getMaxDownloadRequestsPerHost()
     {
-        logQueue("Before Pop");
-
-        String value = null;
+        return maxDownloadRequestsPerHost;
+    }
 
-        if (queuedDownloadRequests.size() > 0)
-        {
-            value = queuedDownloadRequests.pop();
-        }
+    /**
+     * Sets the maximum number of simultaneous downloads from a single host.  Requests for a host
+     * that is at its limit stay queued while requests for other hosts are started.
+     *
+     * @param maxDownloadRequestsPerHost max downloads per host, or zero if only the overall limit applies
+     */
+    public void setMaxDownloadRequestsPerHost(int maxDownloadRequestsPerHost)
+    {
+        this.maxDownloadRequestsPerHost = maxDownloadRequestsPerHost;
+    }
 
-        logQueue("After Pop");
-        return value;
+    // Must be called while holding the lock
+    @Nullable
+    private QueuedRequest dequeueRequest()
+    {
+        return queuedDownloadRequests.poll(activeDownloadsPerHost, maxDownloadRequestsPerHost);
     }
 
     private void processDownloadRequests()
     {
-        ArrayList<String> skipped = new ArrayList<>();
+        ArrayList<String> deferred = new ArrayList<>();
+        boolean scheduleRetry = false;
 
-        while (numberOfActiveRequests() < getMaxDownloadRequests())
+        while (true)
         {
-            String key = dequeueRequest();
-            if (key == null)
-            {
-                // No more queue'd requests
-                break;
-            }
+            QueuedRequest request;
 
-            Long lastFailure = lastFailureTime(key);
-            if (lastFailure != null)
+            synchronized (this)
             {
-                long timeSinceLastFailure = System.currentTimeMillis() - lastFailure;
-                if (timeSinceLastFailure < getFailedDownloadIgnoreTime())
+                long acquired = System.nanoTime();
+
+                try
                 {
-                    UULog.debug(getClass(), "processDownloadRequests", "key: " + key + ", last failure was " + timeSinceLastFailure + " millis ago, waiting to download.");
-                    skipped.add(key);
-                    continue;
+                    if (numberOfActiveRequests() >= getMaxDownloadRequests())
+                    {
+                        break;
+                    }
+
+                    request = dequeueRequest();
+                    if (request == null)
+                    {
+                        // No more queue'd requests, or every queued host is at its limit
+                        break;
+                    }
+
+                    // Failed since it was queued, so it waits for a retry instead of spinning in the queue
+                    if (isBackingOff(request.key, System.currentTimeMillis()))
+                    {
+                        deferredRequests.put(request.key, request);
+                        scheduleRetry = true;
+
+                        if (downloadListeners.containsKey(request.key))
+                        {
+                            deferred.add(request.key);
+                        }
+
+                        continue;
+                    }
+
+                    if (isDownloadPending(request.key))
+                    {
+                        continue;
+                    }
+
+                    addActiveRequest(request.key, request.host);
+
+                    if (request.tag != null && prefetchBudgets.containsKey(request.tag))
+                    {
+                        activePrefetchTags.put(request.key, request.tag);
+                    }
+                }
+                finally
+                {
+                    recordLockHold(acquired);
                 }
             }
 
-            if (!isDownloadPending(key))
-            {
-                addActiveRequest(key);
-                downloadData(key, response -> handleDownloadResponse(response, key));
-            }
+            final String key = request.key;
+            downloadData(key, response -> handleDownloadResponse(response, key, true));
         }
 
-        // Add skipped back in but don't trigger the processing loop
-        synchronized (queuedDownloadRequests)
+        if (scheduleRetry)
         {
-            queuedDownloadRequests.addAll(skipped);
-
+            scheduleRetryTimer();
         }
-    }
 
-    @Override
-    public boolean isDownloadPending(@NonNull final String key)
-    {
-        synchronized (activeDownloads)
+        // Listeners are not left waiting on a download that may not start for a long time
+        for (String key : deferred)
         {
-            return activeDownloads.containsKey(key);
+            notifyListeners(key, null);
         }
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Prefetch
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Queues downloads for a batch of keys that are likely to be needed soon, with no budget
+     *
+     * @param keys remote paths to prefetch
+     * @param priority priority of the downloads
+     * @return tag for the batch, which can be passed to cancelTag
+     */
     @NonNull
-    @Override
-    public HashMap<String, Object> getMetaData(@NonNull final String key)
+    public String prefetch(@NonNull final Collection<String> keys, @NonNull final Priority priority)
     {
-        return UUDataCache.sharedInstance().getMetaData(key);
+        return prefetch(keys, priority, 0, 0, null);
     }
 
-    @Override
-    public void setMetaData(@NonNull HashMap<String, Object> metaData, @NonNull final String key)
+    /**
+     * Queues downloads for a batch of keys that are likely to be needed soon, with a byte and
+     * time budget
+     *
+     * @param keys remote paths to prefetch
+     * @param priority priority of the downloads
+     * @param maxBytes byte budget for the batch, or zero for no limit
+     * @param maxDurationMillis time budget for the batch, or zero for no limit
+     * @return tag for the batch, which can be passed to cancelTag
+     */
+    @NonNull
+    public String prefetch(
+            @NonNull final Collection<String> keys,
+            @NonNull final Priority priority,
+            final long maxBytes,
+            final long maxDurationMillis)
     {
-        UUDataCache.sharedInstance().setMetaData(metaData, key);
+        return prefetch(keys, priority, maxBytes, maxDurationMillis, null);
     }
 
-    private void handleDownloadResponse(@NonNull final DataResponse response, @NonNull final String key)
+    /**
+     * Queues downloads for a batch of keys that are likely to be needed soon.  Keys that are
+     * already cached, queued, downloading or backing off after a failure are skipped, and the
+     * cache is checked for the whole batch at once.  The rest are queued in the order given.
+     *
+     * The cache check reads the database and file system, so it runs on a background thread and
+     * the batch is queued shortly after this returns.
+     *
+     * Once the batch has downloaded maxBytes, or maxDurationMillis has passed, whatever is left
+     * of the batch is cancelled.  Downloads already in progress are allowed to finish.
+     *
+     * @param keys remote paths to prefetch
+     * @param priority priority of the downloads
+     * @param maxBytes byte budget for the batch, or zero for no limit
+     * @param maxDurationMillis time budget for the batch, or zero for no limit
+     * @param delegate optional callback invoked with the number of keys queued
+     * @return tag for the batch, which can be passed to cancelTag
+     */
+    @NonNull
+    public String prefetch(
+            @NonNull final Collection<String> keys,
+            @NonNull final Priority priority,
+            final long maxBytes,
+            final long maxDurationMillis,
+            @Nullable final UUObjectDelegate<Integer> delegate)
     {
-        try
-        {
-            byte[] rawResponse = response.data;
+        final String tag;
 
-            if (rawResponse != null)
-            {
-                UUDataCache.sharedInstance().setData(rawResponse, key);
-                //updateMetaDataFromResponse(response, key);
+        synchronized (this)
+        {
+            ++prefetchCounter;
+            tag = String.format(Locale.US, "UURemoteData.Prefetch.%d.%d", System.identityHashCode(this), prefetchCounter);
+            pendingPrefetchTags.add(tag);
+        }
 
-                HashMap<String, Object> md = UUDataCache.sharedInstance().getMetaData(key);
-                md.put(MetaData.MimeType, response.mimeType);
-                md.put(MetaData.DownloadTimestamp, System.currentTimeMillis());
-                UUDataCache.sharedInstance().setMetaData(md, key);
+        final ArrayList<String> batch = new ArrayList<>(keys);
 
-                Intent intent = new Intent(Notifications.DataDownloaded);
-                intent.putExtra(NotificationKeys.RemotePath, key);
+        prefetchThread.post(() ->
+        {
+            int queued = 0;
 
-                broadcastManager.sendBroadcast(intent);
+            try
+            {
+                queued = queuePrefetch(tag, batch, priority, maxBytes, maxDurationMillis);
             }
-            else
+            catch (Exception ex)
             {
-                Intent intent = new Intent(Notifications.DataDownloadFailed);
-                intent.putExtra(NotificationKeys.RemotePath, key);
+                UULog.error(getClass(), "prefetch", ex);
+            }
 
-                // TODO: Put error info into intent
+            UUObjectDelegate.safeInvoke(delegate, queued);
+        });
 
-                broadcastManager.sendBroadcast(intent);
+        return tag;
+    }
 
-                markDownloadFailed(key);
+    private int queuePrefetch(
+            @NonNull final String tag,
+            @NonNull final ArrayList<String> keys,
+            @NonNull final Priority priority,
+            final long maxBytes,
+            final long maxDurationMillis)
+    {
+        LinkedHashSet<String> candidates = new LinkedHashSet<>();
+        for (String key : keys)
+        {
+            if (key != null && checkUrl(key))
+            {
+                candidates.add(key);
             }
         }
-        catch (Exception ex)
+
+        candidates.removeAll(UUDataCache.sharedInstance().listCachedKeys(candidates));
+
+        HashMap<String, String> hosts = new HashMap<>();
+        for (String key : candidates)
         {
-            UULog.error(getClass(), "handleDownloadResponse", ex);
+            hosts.put(key, hostForKey(key));
         }
-        finally
+
+        int queued = 0;
+
+        synchronized (this)
+        {
+            long acquired = System.nanoTime();
+
+            try
+            {
+                // Cancelled while the cache was being checked
+                if (pendingPrefetchTags.remove(tag))
+                {
+                    long now = System.currentTimeMillis();
+
+                    for (String key : candidates)
+                    {
+                        if (activeDownloads.containsKey(key) ||
+                            queuedDownloadRequests.contains(key) ||
+                            deferredRequests.containsKey(key) ||
+                            isBackingOff(key, now))
+                        {
+                            continue;
+                        }
+
+                        queuedDownloadRequests.append(new QueuedRequest(key, hosts.get(key), priority, tag));
+                        ++queued;
+                    }
+
+                    if (queued > 0 && (maxBytes > 0 || maxDurationMillis > 0))
+                    {
+                        prefetchBudgets.put(tag, new PrefetchBudget(maxBytes));
+                    }
+                }
+            }
+            finally
+            {
+                recordLockHold(acquired);
+            }
+        }
+
+        UULog.debug(getClass(), "prefetch", String.format(Locale.US, "Queued %d of %d keys for %s", queued, keys.size(), tag));
+
+        if (queued > 0 && maxDurationMillis > 0)
         {
-            removeActiveRequest(key);
+            UUTimer.startTimer(tag, maxDurationMillis, null, (timer, userInfo) -> endPrefetch(tag));
         }
+
+        processDownloadRequests();
+        return queued;
     }
 
-    public void notifyDataDownloaded(@NonNull final String key)
+    private void chargePrefetchBudget(@NonNull final String key, final long length)
     {
-        try
+        String exhaustedTag = null;
+
+        synchronized (this)
         {
-            HashMap<String, Object> md = UUDataCache.sharedInstance().getMetaData(key);
-            md.put(MetaData.MimeType, "raw"); // Is this needed?
-            md.put(MetaData.DownloadTimestamp, System.currentTimeMillis());
-            UUDataCache.sharedInstance().setMetaData(md, key);
+            String tag = activePrefetchTags.remove(key);
+            if (tag == null)
+            {
+                return;
+            }
+
+            PrefetchBudget budget = prefetchBudgets.get(tag);
+            if (budget == null)
+            {
+                return;
+            }
 
-            Intent intent = new Intent(Notifications.DataDownloaded);
-            intent.putExtra(NotificationKeys.RemotePath, key);
+            budget.bytesDownloaded += length;
 
-            broadcastManager.sendBroadcast(intent);
+            if (budget.maxBytes > 0 && budget.bytesDownloaded >= budget.maxBytes)
+            {
+                exhaustedTag = tag;
+            }
+            else
+            {
+                releasePrefetchBudgetIfDone(tag);
+            }
         }
-        catch (Exception ex)
+
+        if (exhaustedTag != null)
         {
-            UULog.error(getClass(), " notifyDataDownloaded", ex);
+            UULog.debug(getClass(), "chargePrefetchBudget", "Byte budget used up for " + exhaustedTag);
+            endPrefetch(exhaustedTag);
         }
     }
 
-    private synchronized void markDownloadFailed(@NonNull final String key)
+    // Must be called while holding the lock
+    private void releasePrefetchBudgetIfDone(@NonNull final String tag)
     {
-        lastFailureTimes.put(key, System.currentTimeMillis());
+        if (!queuedDownloadRequests.containsTag(tag) && !activePrefetchTags.containsValue(tag))
+        {
+            // Batch is done, nothing left to budget
+            prefetchBudgets.remove(tag);
+            UUTimer.cancelActiveTimer(tag);
+        }
     }
 
-    @Nullable
-    private synchronized Long lastFailureTime(@NonNull final String key)
+    private void endPrefetch(@NonNull final String tag)
     {
-        return lastFailureTimes.get(key);
-    }
+        synchronized (this)
+        {
+            prefetchBudgets.remove(tag);
+        }
 
-    public long getFailedDownloadIgnoreTime()
-    {
-        return failedDownloadIgnoreTime;
-    }
+        UUTimer.cancelActiveTimer(tag);
 
-    public void setFailedDownloadIgnoreTime(long failedDownloadIgnoreTime)
-    {
-        this.failedDownloadIgnoreTime = failedDownloadIgnoreTime;
+        int cancelled = cancelTag(tag);
+        if (cancelled > 0)
+        {
+            UULog.debug(getClass(), "endPrefetch", String.format(Locale.US, "Cancelled %d remaining requests for %s", cancelled, tag));
+        }
     }
 
-    public synchronized void clearLastFailureTimes()
-    {
-        lastFailureTimes.clear();
-    }
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Diagnostics
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Takes a snapshot of the download queue and lock statistics.  This walks the whole queue, so
+     * it is meant for debugging rather than routine use.
+     *
+     * @return a snapshot of the scheduler state
+     */
+    @NonNull
+    public synchronized Diagnostics getDiagnostics()
+    {
+        Diagnostics diagnostics = new Diagnostics();
+        diagnostics.queuedKeys = queuedDownloadRequests.listKeys();
+        diagnostics.activeKeys = new ArrayList<>(activeDownloads.keySet());
+        diagnostics.deferredKeys = new ArrayList<>(deferredRequests.keySet());
+        diagnostics.failureCount = failureTable.size();
+        diagnostics.activeDownloadsPerHost = new HashMap<>(activeDownloadsPerHost);
+        diagnostics.lockHoldCount = lockHoldCount;
+        diagnostics.lockHoldTotalNanos = lockHoldTotalNanos;
+        diagnostics.lockHoldMaxNanos = lockHoldMaxNanos;
+
+        for (ArrayList<UUObjectDelegate<byte[]>> list : downloadListeners.values())
+        {
+            diagnostics.listenerCount += list.size();
+        }
+
+        return diagnostics;
+    }
+
+    /**
+     * Logs a snapshot of the download queue and lock statistics
+     */
+    public void logDiagnostics()
+    {
+        Diagnostics diagnostics = getDiagnostics();
+
+        long averageNanos = (diagnostics.lockHoldCount > 0) ? (diagnostics.lockHoldTotalNanos / diagnostics.lockHoldCount) : 0;
+
+        UULog.debug(getClass(), "logDiagnostics",
+            String.format(Locale.US, "Queued: %d, Active: %d, Deferred: %d, Failures: %d, Listeners: %d, Lock holds: %d, Avg hold: %d ns, Max hold: %d ns",
+                diagnostics.queuedKeys.size(), diagnostics.activeKeys.size(), diagnostics.deferredKeys.size(),
+                diagnostics.failureCount, diagnostics.listenerCount,
+                diagnostics.lockHoldCount, averageNanos, diagnostics.lockHoldMaxNanos));
+
+        int i = 0;
+
+        for (String next : diagnostics.queuedKeys)
+        {
+            UULog.debug(getClass(), "logDiagnostics", "Queued " + i + ": " + next);
+            ++i;
+        }
+
+        for (String next : diagnostics.activeKeys)
+        {
+            UULog.debug(getClass(), "logDiagnostics", "Active: " + next);
+        }
+
+        for (String next : diagnostics.deferredKeys)
+        {
+            UULog.debug(getClass(), "logDiagnostics", "Deferred: " + next);
+        }
+    }
+
+    public synchronized void resetLockStatistics()
+    {
+        lockHoldCount = 0;
+        lockHoldTotalNanos = 0;
+        lockHoldMaxNanos = 0;
+    }
+
+    // Must be called while holding the lock
+    private void recordLockHold(final long acquiredNanos)
+    {
+        long held = System.nanoTime() - acquiredNanos;
+
+        ++lockHoldCount;
+        lockHoldTotalNanos += held;
+
+        if (held > lockHoldMaxNanos)
+        {
+            lockHoldMaxNanos = held;
+        }
+    }
+
+    @Override
+    public synchronized boolean isDownloadPending(@NonNull final String key)
+    {
+        return activeDownloads.containsKey(key);
+    }
+
+    /**
+     * Checks to see if a download is waiting in the queue
+     *
+     * @param key lookup key
+     * @return true if a download is queued, false if it is not.
+     */
+    public synchronized boolean isDownloadQueued(@NonNull final String key)
+    {
+        return queuedDownloadRequests.contains(key) || deferredRequests.containsKey(key);
+    }
+
+    /**
+     * Removes a queued download request.  Downloads that have already started are not affected.
+     *
+     * @param key lookup key
+     * @return true if a queued request was removed
+     */
+    public boolean cancel(@NonNull final String key)
+    {
+        boolean removed;
+        boolean active;
+
+        synchronized (this)
+        {
+            removed = (queuedDownloadRequests.remove(key) != null);
+            removed |= (deferredRequests.remove(key) != null);
+            active = activeDownloads.containsKey(key);
+        }
+
+        // Listeners on a download that is already running still get its result
+        if (removed && !active)
+        {
+            notifyListeners(key, null);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes all queued download requests with a tag.  Downloads that have already started are
+     * not affected.
+     *
+     * @param tag the tag passed to getData
+     * @return number of queued requests removed
+     */
+    public int cancelTag(@NonNull final String tag)
+    {
+        ArrayList<String> removed;
+
+        synchronized (this)
+        {
+            removed = queuedDownloadRequests.removeTag(tag);
+            prefetchBudgets.remove(tag);
+            pendingPrefetchTags.remove(tag);
+
+            Iterator<QueuedRequest> iterator = deferredRequests.values().iterator();
+            while (iterator.hasNext())
+            {
+                QueuedRequest request = iterator.next();
+                if (tag.equals(request.tag))
+                {
+                    iterator.remove();
+                    removed.add(request.key);
+                }
+            }
+        }
+
+        for (String key : removed)
+        {
+            if (!isDownloadPending(key))
+            {
+                notifyListeners(key, null);
+            }
+        }
+
+        return removed.size();
+    }
+
+    @NonNull
+    @Override
+    public HashMap<String, Object> getMetaData(@NonNull final String key)
+    {
+        return UUDataCache.sharedInstance().getMetaData(key);
+    }
+
+    @Override
+    public void setMetaData(@NonNull HashMap<String, Object> metaData, @NonNull final String key)
+    {
+        UUDataCache.sharedInstance().setMetaData(metaData, key);
+    }
+
+    private void handleDownloadResponse(@NonNull final DataResponse response, @NonNull final String key, final boolean allowRefetch)
+    {
+        boolean refetching = false;
+
+        try
+        {
+            byte[] rawResponse = response.data;
+            boolean success = false;
+
+            if (response.notModified)
+            {
+                UUDataCache dataCache = UUDataCache.sharedInstance();
+
+                if (!dataCache.doesDataExist(key))
+                {
+                    // Evicted while the conditional request was in flight.  Nothing went wrong
+                    // with the URL, so fetch it again without validators instead of failing.
+                    if (allowRefetch)
+                    {
+                        UULog.debug(getClass(), "handleDownloadResponse", "Cached copy of " + key + " is gone, downloading it again");
+                        downloadData(key, refetched -> handleDownloadResponse(refetched, key, false));
+                        refetching = true;
+                        return;
+                    }
+                }
+                else
+                {
+                    // Cheap refresh, the cached copy is good for another expiration interval
+                    HashMap<String, Object> md = dataCache.getMetaData(key);
+                    md.put(MetaData.Timestamp, System.currentTimeMillis());
+                    putValidators(md, response);
+                    dataCache.setMetaData(md, key);
+                    success = true;
+
+                    if (hasListeners(key))
+                    {
+                        rawResponse = dataCache.getData(key);
+                    }
+                }
+            }
+            else if (rawResponse != null)
+            {
+                UUDataCache.sharedInstance().setData(rawResponse, key);
+                //updateMetaDataFromResponse(response, key);
+
+                updateDownloadMetaData(key, response);
+                success = true;
+            }
+            else if (response.streamed)
+            {
+                // Already committed to the cache, only read it back if someone is waiting on it
+                updateDownloadMetaData(key, response);
+                success = true;
+
+                if (hasListeners(key))
+                {
+                    rawResponse = UUDataCache.sharedInstance().getData(key);
+                }
+            }
+
+            if (success)
+            {
+                markDownloadSucceeded(key);
+                notifyListeners(key, rawResponse);
+
+                if (broadcastNotificationsEnabled)
+                {
+                    Intent intent = new Intent(Notifications.DataDownloaded);
+                    intent.putExtra(NotificationKeys.RemotePath, key);
+
+                    broadcastManager.sendBroadcast(intent);
+                }
+            }
+            else
+            {
+                markDownloadFailed(key);
+
+                notifyListeners(key, null);
+
+                if (broadcastNotificationsEnabled)
+                {
+                    Intent intent = new Intent(Notifications.DataDownloadFailed);
+                    intent.putExtra(NotificationKeys.RemotePath, key);
+
+                    // TODO: Put error info into intent
+
+                    broadcastManager.sendBroadcast(intent);
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "handleDownloadResponse", ex);
+        }
+        finally
+        {
+            // A refetch keeps the key active until its own response is handled
+            if (!refetching)
+            {
+                chargePrefetchBudget(key, response.length);
+                removeActiveRequest(key);
+            }
+        }
+    }
 
-    public synchronized void clearPendingQueue()
+    private void updateDownloadMetaData(@NonNull final String key, @NonNull final DataResponse response)
     {
-        queuedDownloadRequests.clear();
+        HashMap<String, Object> md = UUDataCache.sharedInstance().getMetaData(key);
+        md.put(MetaData.MimeType, response.mimeType);
+        md.put(MetaData.DownloadTimestamp, System.currentTimeMillis());
+        md.remove(MetaData.ETag);
+        md.remove(MetaData.LastModified);
+        putValidators(md, response);
+        UUDataCache.sharedInstance().setMetaData(md, key);
+    }
+
+    private boolean hasValidators(@NonNull final String key)
+    {
+        HashMap<String, Object> md = UUDataCache.sharedInstance().getMetaData(key);
+        return (md.get(MetaData.ETag) != null || md.get(MetaData.LastModified) != null);
+    }
+
+    private void addValidatorHeaders(@NonNull final UUHttpRequest request, @NonNull final String key)
+    {
+        UUDataCache dataCache = UUDataCache.sharedInstance();
+        if (!dataCache.doesDataExist(key))
+        {
+            return;
+        }
+
+        HashMap<String, Object> md = dataCache.getMetaData(key);
+
+        Object eTag = md.get(MetaData.ETag);
+        if (eTag != null)
+        {
+            request.addHeaderField(HEADER_IF_NONE_MATCH, eTag);
+        }
+
+        Object lastModified = md.get(MetaData.LastModified);
+        if (lastModified != null)
+        {
+            request.addHeaderField(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    private static void putValidators(@NonNull final HashMap<String, Object> md, @NonNull final DataResponse response)
+    {
+        if (response.eTag != null)
+        {
+            md.put(MetaData.ETag, response.eTag);
+        }
+
+        if (response.lastModified != null)
+        {
+            md.put(MetaData.LastModified, response.lastModified);
+        }
+    }
+
+    public void notifyDataDownloaded(@NonNull final String key)
+    {
+        try
+        {
+            HashMap<String, Object> md = UUDataCache.sharedInstance().getMetaData(key);
+            md.put(MetaData.MimeType, "raw"); // Is this needed?
+            md.put(MetaData.DownloadTimestamp, System.currentTimeMillis());
+            UUDataCache.sharedInstance().setMetaData(md, key);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), " notifyDataDownloaded", ex);
+        }
+
+        notifyDataAvailable(key);
+    }
+
+    /**
+     * Notifies listeners and broadcast receivers that data for a key is ready, without marking it
+     * as newly downloaded.  Used when cached data has been processed, such as an image decode.
+     *
+     * @param key lookup key
+     */
+    void notifyDataAvailable(@NonNull final String key)
+    {
+        try
+        {
+            // Only read the data back if someone is waiting on it
+            ArrayList<UUObjectDelegate<byte[]>> list = removeListeners(key);
+            if (list != null)
+            {
+                invokeListeners(list, UUDataCache.sharedInstance().getData(key));
+            }
+
+            if (broadcastNotificationsEnabled)
+            {
+                Intent intent = new Intent(Notifications.DataDownloaded);
+                intent.putExtra(NotificationKeys.RemotePath, key);
+
+                broadcastManager.sendBroadcast(intent);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "notifyDataAvailable", ex);
+        }
+    }
+
+    private synchronized void addListener(@NonNull final String key, @Nullable final UUObjectDelegate<byte[]> listener)
+    {
+        if (listener == null)
+        {
+            return;
+        }
+
+        ArrayList<UUObjectDelegate<byte[]>> list = downloadListeners.get(key);
+        if (list == null)
+        {
+            list = new ArrayList<>();
+            downloadListeners.put(key, list);
+        }
+
+        list.add(listener);
+    }
+
+    private synchronized boolean hasListeners(@NonNull final String key)
+    {
+        return downloadListeners.containsKey(key);
+    }
+
+    private void notifyListeners(@NonNull final String key, @Nullable final byte[] data)
+    {
+        ArrayList<UUObjectDelegate<byte[]>> list = removeListeners(key);
+        if (list != null)
+        {
+            invokeListeners(list, data);
+        }
+    }
+
+    @Nullable
+    private synchronized ArrayList<UUObjectDelegate<byte[]>> removeListeners(@NonNull final String key)
+    {
+        return downloadListeners.remove(key);
+    }
+
+    private static void invokeListeners(@NonNull final ArrayList<UUObjectDelegate<byte[]>> list, @Nullable final byte[] data)
+    {
+        for (UUObjectDelegate<byte[]> listener : list)
+        {
+            UUObjectDelegate.safeInvokeOnMainThread(listener, data);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Retry Back Off
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private synchronized void markDownloadFailed(@NonNull final String key)
+    {
+        FailureRecord record = failureTable.get(key);
+        if (record == null)
+        {
+            record = new FailureRecord();
+            failureTable.put(key, record);
+        }
+
+        ++record.failureCount;
+        record.retryTime = System.currentTimeMillis() + computeRetryDelay(record.failureCount);
+    }
+
+    private synchronized void markDownloadSucceeded(@NonNull final String key)
+    {
+        failureTable.remove(key);
+    }
+
+    // Must be called while holding the lock
+    private boolean isBackingOff(@NonNull final String key, final long now)
+    {
+        FailureRecord record = failureTable.get(key);
+        return (record != null && now < record.retryTime);
+    }
+
+    // Must be called while holding the lock
+    private long computeRetryDelay(final int failureCount)
+    {
+        long maxDelay = failedDownloadIgnoreTime;
+        long delay = initialRetryDelay << Math.min(failureCount - 1, 30);
+        if (delay <= 0 || delay > maxDelay)
+        {
+            delay = maxDelay;
+        }
+
+        // Half fixed and half random, so a batch of failures does not retry in lock step
+        long half = delay / 2;
+        return half + (long)(random.nextDouble() * (delay - half));
+    }
+
+    private void scheduleRetryTimer()
+    {
+        long nextRetryTime = Long.MAX_VALUE;
+
+        synchronized (this)
+        {
+            for (String key : deferredRequests.keySet())
+            {
+                FailureRecord record = failureTable.get(key);
+                long retryTime = (record != null) ? record.retryTime : 0;
+                nextRetryTime = Math.min(nextRetryTime, retryTime);
+            }
+        }
+
+        if (nextRetryTime != Long.MAX_VALUE)
+        {
+            long delay = Math.max(1, nextRetryTime - System.currentTimeMillis());
+            UUTimer.startTimer(retryTimerId, delay, null, (timer, userInfo) -> retryDeferredRequests());
+        }
+    }
+
+    private void retryDeferredRequests()
+    {
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+
+            Iterator<QueuedRequest> iterator = deferredRequests.values().iterator();
+            while (iterator.hasNext())
+            {
+                QueuedRequest request = iterator.next();
+                if (!isBackingOff(request.key, now))
+                {
+                    iterator.remove();
+                    queuedDownloadRequests.append(request);
+                }
+            }
+        }
+
+        scheduleRetryTimer();
+        processDownloadRequests();
+    }
+
+    /**
+     * Gets the longest time a failed download waits before it is retried.  Each consecutive
+     * failure doubles the wait, starting from the initial retry delay, up to this limit.
+     *
+     * @return max retry delay in milliseconds
+     */
+    public long getFailedDownloadIgnoreTime()
+    {
+        return failedDownloadIgnoreTime;
+    }
+
+    public void setFailedDownloadIgnoreTime(long failedDownloadIgnoreTime)
+    {
+        this.failedDownloadIgnoreTime = failedDownloadIgnoreTime;
+    }
+
+    /**
+     * Gets how long a download waits before it is retried after its first failure
+     *
+     * @return retry delay in milliseconds
+     */
+    public long getInitialRetryDelay()
+    {
+        return initialRetryDelay;
+    }
+
+    public void setInitialRetryDelay(long initialRetryDelay)
+    {
+        this.initialRetryDelay = initialRetryDelay;
+    }
+
+    public void clearLastFailureTimes()
+    {
+        synchronized (this)
+        {
+            failureTable.clear();
+        }
+
+        retryDeferredRequests();
+    }
+
+    public void clearPendingQueue()
+    {
+        ArrayList<String> removed;
+
+        synchronized (this)
+        {
+            removed = queuedDownloadRequests.listKeys();
+            removed.addAll(deferredRequests.keySet());
+            queuedDownloadRequests.clear();
+            deferredRequests.clear();
+            pendingPrefetchTags.clear();
+        }
+
+        for (String key : removed)
+        {
+            if (!isDownloadPending(key))
+            {
+                notifyListeners(key, null);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Request Queue
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes a download body straight into the data cache.  The entry is committed when the body
+     * has been completely read, and discarded if the read fails.
+     */
+    private class CacheStreamHandler implements UUHttpResponseStreamHandler
+    {
+        private final String key;
+
+        CacheStreamHandler(@NonNull final String key)
+        {
+            this.key = key;
+        }
+
+        @Nullable
+        @Override
+        public OutputStream openResponseStream(@NonNull final UUHttpResponse response)
+        {
+            return UUDataCache.sharedInstance().openOutputStream(key);
+        }
+
+        @Override
+        public void onResponseProgress(@NonNull final UUHttpResponse response, final long bytesRead, final long contentLength)
+        {
+            DownloadProgressDelegate delegate = downloadProgressDelegate;
+            if (delegate == null)
+            {
+                return;
+            }
+
+            try
+            {
+                delegate.onDownloadProgress(key, bytesRead, contentLength);
+            }
+            catch (Exception ex)
+            {
+                UULog.error(getClass(), "onResponseProgress", ex);
+            }
+        }
+
+        @Override
+        public void closeResponseStream(@NonNull final OutputStream stream, final boolean success) throws IOException
+        {
+            if (success)
+            {
+                stream.close();
+            }
+            else
+            {
+                ((UUDataCache.EntryOutputStream)stream).abort();
+            }
+        }
+    }
+
+    private static class PrefetchBudget
+    {
+        private final long maxBytes;
+        private long bytesDownloaded = 0;
+
+        private PrefetchBudget(final long maxBytes)
+        {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    private static class FailureRecord
+    {
+        private int failureCount = 0;
+        private long retryTime = 0;
+    }
+
+    private static class QueuedRequest
+    {
+        private final String key;
+        private final String host;
+        private Priority priority;
+
+        @Nullable
+        private String tag;
+
+        private QueuedRequest prev;
+        private QueuedRequest next;
+
+        private QueuedRequest(@NonNull final String key, @NonNull final String host, @NonNull final Priority priority, @Nullable final String tag)
+        {
+            this.key = key;
+            this.host = host;
+            this.priority = priority;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Download queue with one linked list per priority, indexed by key and by tag so that
+     * requeueing and cancelling a single request are constant time.  Not thread safe.
+     */
+    private static class RequestQueue
+    {
+        private final HashMap<String, QueuedRequest> lookup = new HashMap<>();
+        private final HashMap<String, HashSet<String>> tags = new HashMap<>();
+        private final QueuedRequest[] heads = new QueuedRequest[Priority.values().length];
+        private final QueuedRequest[] tails = new QueuedRequest[Priority.values().length];
+
+        /**
+         * Adds a request to the front of its priority.  A key that is already queued is moved to
+         * the front, keeping the more urgent of its old and new priorities.  The request takes the
+         * new caller's tag, so cancelling an earlier tag, such as a prefetch, does not drop it.
+         *
+         * @return the tag the request was queued with before, or null
+         */
+        @Nullable
+        private String push(@NonNull final String key, @NonNull final String host, @NonNull final Priority priority, @Nullable final String tag)
+        {
+            String previousTag = null;
+
+            QueuedRequest request = remove(key);
+            if (request == null)
+            {
+                request = new QueuedRequest(key, host, priority, tag);
+            }
+            else
+            {
+                if (priority.ordinal() < request.priority.ordinal())
+                {
+                    request.priority = priority;
+                }
+
+                previousTag = request.tag;
+                request.tag = tag;
+            }
+
+            link(request, true);
+            return previousTag;
+        }
+
+        /**
+         * Adds a request to the back of its priority
+         */
+        private void append(@NonNull final QueuedRequest request)
+        {
+            if (!lookup.containsKey(request.key))
+            {
+                link(request, false);
+            }
+        }
+
+        /**
+         * Removes and returns the most urgent request whose host is below the per host limit
+         *
+         * @param activePerHost number of active downloads per host
+         * @param maxPerHost per host limit, or zero for no limit
+         * @return a request, or null if nothing can be started
+         */
+        @Nullable
+        private QueuedRequest poll(@NonNull final HashMap<String, Integer> activePerHost, final int maxPerHost)
+        {
+            for (QueuedRequest head : heads)
+            {
+                for (QueuedRequest request = head; request != null; request = request.next)
+                {
+                    Integer active = activePerHost.get(request.host);
+                    if (maxPerHost <= 0 || active == null || active < maxPerHost)
+                    {
+                        unlink(request);
+                        return request;
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        @Nullable
+        private QueuedRequest remove(@NonNull final String key)
+        {
+            QueuedRequest request = lookup.get(key);
+            if (request != null)
+            {
+                unlink(request);
+            }
+
+            return request;
+        }
+
+        @NonNull
+        private ArrayList<String> removeTag(@NonNull final String tag)
+        {
+            ArrayList<String> removed = new ArrayList<>();
+
+            HashSet<String> keys = tags.remove(tag);
+            if (keys != null)
+            {
+                for (String key : keys)
+                {
+                    if (remove(key) != null)
+                    {
+                        removed.add(key);
+                    }
+                }
+            }
+
+            return removed;
+        }
+
+        private boolean contains(@NonNull final String key)
+        {
+            return lookup.containsKey(key);
+        }
+
+        private boolean containsTag(@NonNull final String tag)
+        {
+            return tags.containsKey(tag);
+        }
+
+        private int size()
+        {
+            return lookup.size();
+        }
+
+        private void clear()
+        {
+            lookup.clear();
+            tags.clear();
+
+            for (int i = 0; i < heads.length; i++)
+            {
+                heads[i] = null;
+                tails[i] = null;
+            }
+        }
+
+        /**
+         * Lists queued keys in the order they would be started
+         */
+        @NonNull
+        private ArrayList<String> listKeys()
+        {
+            ArrayList<String> list = new ArrayList<>();
+
+            for (QueuedRequest head : heads)
+            {
+                for (QueuedRequest request = head; request != null; request = request.next)
+                {
+                    list.add(request.key);
+                }
+            }
+
+            return list;
+        }
+
+        private void link(@NonNull final QueuedRequest request, final boolean atFront)
+        {
+            int index = request.priority.ordinal();
+
+            if (atFront)
+            {
+                request.prev = null;
+                request.next = heads[index];
+
+                if (heads[index] != null)
+                {
+                    heads[index].prev = request;
+                }
+
+                heads[index] = request;
+
+                if (tails[index] == null)
+                {
+                    tails[index] = request;
+                }
+            }
+            else
+            {
+                request.next = null;
+                request.prev = tails[index];
+
+                if (tails[index] != null)
+                {
+                    tails[index].next = request;
+                }
+
+                tails[index] = request;
+
+                if (heads[index] == null)
+                {
+                    heads[index] = request;
+                }
+            }
+
+            lookup.put(request.key, request);
+
+            if (request.tag != null)
+            {
+                HashSet<String> keys = tags.get(request.tag);
+                if (keys == null)
+                {
+                    keys = new HashSet<>();
+                    tags.put(request.tag, keys);
+                }
+
+                keys.add(request.key);
+            }
+        }
+
+        private void unlink(@NonNull final QueuedRequest request)
+        {
+            int index = request.priority.ordinal();
+
+            if (request.prev != null)
+            {
+                request.prev.next = request.next;
+            }
+            else
+            {
+                heads[index] = request.next;
+            }
+
+            if (request.next != null)
+            {
+                request.next.prev = request.prev;
+            }
+            else
+            {
+                tails[index] = request.prev;
+            }
+
+            request.prev = null;
+            request.next = null;
+
+            lookup.remove(request.key);
+
+            if (request.tag != null)
+            {
+                HashSet<String> keys = tags.get(request.tag);
+                if (keys != null)
+                {
+                    keys.remove(request.key);
+                    if (keys.isEmpty())
+                    {
+                        tags.remove(request.tag);
+                    }
+                }
+            }
+        }
     }
 }
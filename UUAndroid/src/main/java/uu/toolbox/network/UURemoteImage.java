@@ -1,19 +1,32 @@
 package uu.toolbox.network;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Process;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.util.LruCache;
 import android.util.Size;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
-
-import uu.toolbox.core.UUThread;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uu.toolbox.core.UUBitmapPool;
+import uu.toolbox.core.UUFile;
+import uu.toolbox.core.UUMemoryBudget;
+import uu.toolbox.core.UUString;
 import uu.toolbox.data.UUDataCache;
+import uu.toolbox.logging.UULog;
 
 public class UURemoteImage
 {
@@ -21,8 +34,49 @@ public class UURemoteImage
     {
         public static final String ImageWidth = "ImageWidth";
         public static final String ImageHeight = "ImageHeight";
+
+        // The DownloadTimestamp of the body ImageWidth and ImageHeight were read from
+        public static final String ImageSizeTimestamp = "ImageSizeTimestamp";
+    }
+
+    /**
+     * How a decode is shrunk to fit getImage's target size
+     */
+    public enum SampleStrategy
+    {
+        // Subsample by the largest power of two that keeps the image at least as big as the
+        // target.  The cheapest decode, but the result may be up to twice the target size.
+        POWER_OF_TWO_FLOOR,
+
+        // Subsample by a power of two, then scale the rest of the way during the decode so the
+        // image just covers the target
+        EXACT_FIT
     }
 
+    private static final int VARIANT_JPEG_QUALITY = 90;
+    private static final String VARIANT_FOLDER_NAME = "UURemoteImageVariants";
+
+    // Default size limit of the folder resized variants are saved to
+    public static final long DEFAULT_MAX_VARIANT_DISK_CACHE_SIZE = 32 * 1024 * 1024;
+
+    // Share of the UUMemoryBudget given to decoded bitmaps, relative to the data cache's share
+    public static final float MEMORY_BUDGET_SHARE = 3.0f;
+
+    // Decoding is CPU bound, so there is no benefit to running more decodes than there are cores
+    private static final int DECODE_THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final AtomicInteger decodeThreadCounter = new AtomicInteger();
+    private static final ExecutorService decodeExecutor = Executors.newFixedThreadPool(DECODE_THREAD_COUNT, r ->
+    {
+        Thread t = new Thread(() ->
+        {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        });
+
+        t.setName("UURemoteImageDecode-" + decodeThreadCounter.incrementAndGet());
+        return t;
+    });
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Singleton Interface
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -48,18 +102,55 @@ public class UURemoteImage
     // Private Members
     ////////////////////////////////////////////////////////////////////////////////////////////////
     private MemoryCache memoryCache;
+    private boolean variantDiskCacheEnabled = true;
+    private SampleStrategy sampleStrategy = SampleStrategy.POWER_OF_TWO_FLOOR;
+    private Bitmap.Config preferredConfig = Bitmap.Config.ARGB_8888;
 
-    public UURemoteImage(@NonNull final Context context)
+    // Variants are kept out of UUDataCache so they don't use its keys, budgets or expiration
+    private final File variantFolder;
+    private volatile long maxVariantDiskCacheSize = DEFAULT_MAX_VARIANT_DISK_CACHE_SIZE;
+    private final Object variantLock = new Object();
+    private long variantDiskUsage = -1;
+
+    // Decodes that are queued or running, by photo key
+    private final HashMap<String, DecodeTask> activeDecodes = new HashMap<>();
+
+    private final UUMemoryBudget.Client memoryBudgetClient = new UUMemoryBudget.Client()
     {
-        // Get max available VM memory, exceeding this amount will throw an
-        // OutOfMemory exception. Stored in kilobytes as LruCache takes an
-        // int in its constructor.
-        int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
+        @Override
+        public long getMemoryUsage()
+        {
+            return memoryCache.size();
+        }
 
-        // Use 1/8th of the available memory for this memory cache.
-        int cacheSize = maxMemory / 8;
+        @Override
+        public void setMemoryLimit(final long maxBytes)
+        {
+            memoryCache.resize((int)Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes)));
+        }
+
+        @Override
+        public void trimMemory(final long targetBytes)
+        {
+            memoryCache.trimToSize((int)Math.min(Integer.MAX_VALUE, targetBytes));
+
+            // The pool only holds bitmaps handed back through releaseImage, and keeping them
+            // would defeat the trim
+            UUBitmapPool pool = memoryCache.bitmapPool;
+            if (pool != null)
+            {
+                pool.clear();
+            }
+        }
+    };
 
-        memoryCache = new MemoryCache(cacheSize);
+    public UURemoteImage(@NonNull final Context context)
+    {
+        UUMemoryBudget memoryBudget = UUMemoryBudget.getOrInit(context);
+        memoryCache = new MemoryCache((int)Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget.getBudgetForShare(MEMORY_BUDGET_SHARE))));
+        memoryBudget.register(memoryBudgetClient, MEMORY_BUDGET_SHARE);
+
+        variantFolder = new File(context.getCacheDir(), VARIANT_FOLDER_NAME);
     }
 
     public void clearCache()
@@ -67,6 +158,138 @@ public class UURemoteImage
         memoryCache.evictAll();
     }
 
+    /**
+     * Gets the maximum number of bytes of decoded bitmaps held in memory
+     *
+     * @return size in bytes
+     */
+    public int getMemoryCacheSize()
+    {
+        return memoryCache.maxSize();
+    }
+
+    /**
+     * Sets the maximum number of bytes of decoded bitmaps held in memory.  The size is normally
+     * set from this cache's share of the UUMemoryBudget, and is replaced the next time that budget
+     * changes.
+     *
+     * @param maxBytes size in bytes, must be greater than zero
+     */
+    public void setMemoryCacheSize(final int maxBytes)
+    {
+        if (maxBytes > 0)
+        {
+            memoryCache.resize(maxBytes);
+        }
+    }
+
+    /**
+     * Gets the number of bytes of decoded bitmaps currently held in memory
+     *
+     * @return size in bytes
+     */
+    public int getMemoryCacheUsage()
+    {
+        return memoryCache.size();
+    }
+
+    @Nullable
+    public UUBitmapPool getBitmapPool()
+    {
+        return memoryCache.bitmapPool;
+    }
+
+    /**
+     * Sets a pool that decodes reuse bitmaps from.  Bitmaps only go into the pool when they are
+     * handed back with releaseImage, since a bitmap evicted from the memory cache may still be
+     * drawn by a view.
+     *
+     * @param bitmapPool the pool, or null to stop pooling
+     */
+    public void setBitmapPool(@Nullable final UUBitmapPool bitmapPool)
+    {
+        memoryCache.bitmapPool = bitmapPool;
+    }
+
+    @NonNull
+    public SampleStrategy getSampleStrategy()
+    {
+        return sampleStrategy;
+    }
+
+    /**
+     * Sets how images are shrunk to fit the target size passed to getImage.  Only affects images
+     * decoded after the change.
+     *
+     * @param strategy the sample strategy
+     */
+    public void setSampleStrategy(@NonNull final SampleStrategy strategy)
+    {
+        sampleStrategy = strategy;
+    }
+
+    @NonNull
+    public Bitmap.Config getPreferredConfig()
+    {
+        return preferredConfig;
+    }
+
+    /**
+     * Sets the pixel format images are decoded to.  RGB_565 halves the memory of opaque images,
+     * images with alpha are still decoded with an alpha channel.  Only affects images decoded
+     * after the change.
+     *
+     * @param config the preferred config
+     */
+    public void setPreferredConfig(@NonNull final Bitmap.Config config)
+    {
+        preferredConfig = config;
+    }
+
+    public boolean isVariantDiskCacheEnabled()
+    {
+        return variantDiskCacheEnabled;
+    }
+
+    /**
+     * Sets whether downsampled images are saved to disk, so the next memory cache miss
+     * for the same size decodes the small variant instead of the original
+     *
+     * @param enabled true to save variants
+     */
+    public void setVariantDiskCacheEnabled(final boolean enabled)
+    {
+        variantDiskCacheEnabled = enabled;
+    }
+
+    public long getMaxVariantDiskCacheSize()
+    {
+        return maxVariantDiskCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of bytes of saved variants.  The least recently used variants are
+     * deleted when a save goes over the limit.
+     *
+     * @param maxBytes size in bytes
+     */
+    public void setMaxVariantDiskCacheSize(final long maxBytes)
+    {
+        maxVariantDiskCacheSize = maxBytes;
+    }
+
+    /**
+     * Deletes all saved variants.  Originals in UUDataCache are not affected.
+     */
+    public void clearVariantCache()
+    {
+        synchronized (variantLock)
+        {
+            UUFile.deleteFile(variantFolder);
+            variantDiskUsage = 0;
+        }
+    }
+
     @Nullable
     public Bitmap getImage(@NonNull final String key, final boolean skipDownload)
     {
@@ -87,57 +310,421 @@ public class UURemoteImage
             }
             else
             {
-                UUThread.runOnBackgroundThread(() ->
-                {
-                    File file = UUDataCache.sharedInstance().getDiskFileName(key);
+                queueDecode(key, photoKey, targetWidth, targetHeight);
+                return null;
+            }
+        }
+        else if (!skipDownload)
+        {
+            UURemoteData.sharedInstance().getData(key);
+        }
+
+        return null;
+    }
+
+    /**
+     * Cancels a decode queued by getImage, such as when the view that wanted it is recycled.
+     * Requests for the same image and size share one decode, which is only cancelled once every
+     * getImage call that queued or joined it has been cancelled.  A decode that has already
+     * started is allowed to finish, and its result is cached.
+     *
+     * @param key remote path
+     * @param targetWidth target width passed to getImage
+     * @param targetHeight target height passed to getImage
+     * @return true if the queued decode was cancelled
+     */
+    public boolean cancelImage(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    {
+        String photoKey = getPhotoKey(key, targetWidth, targetHeight);
+
+        synchronized (activeDecodes)
+        {
+            DecodeTask task = activeDecodes.get(photoKey);
+            if (task == null || task.requesters <= 0)
+            {
+                return false;
+            }
+
+            // Other requesters are still waiting on this decode
+            --task.requesters;
+            if (task.requesters > 0)
+            {
+                return false;
+            }
+
+            if (task.future.cancel(false))
+            {
+                activeDecodes.remove(photoKey);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes a decoded image from the memory cache and returns its bitmap to the bitmap pool, so
+     * a later decode can reuse its memory.  Only call this once nothing is drawing the bitmap
+     * returned by getImage for the same key and size.
+     *
+     * @param key remote path
+     * @param targetWidth target width passed to getImage
+     * @param targetHeight target height passed to getImage
+     * @return true if a bitmap was pooled
+     */
+    public boolean releaseImage(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    {
+        Bitmap bitmap = memoryCache.remove(getPhotoKey(key, targetWidth, targetHeight));
+
+        UUBitmapPool pool = memoryCache.bitmapPool;
+        return (bitmap != null && pool != null && pool.put(bitmap));
+    }
+
+    private void queueDecode(@NonNull final String key, @NonNull final String photoKey, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    {
+        synchronized (activeDecodes)
+        {
+            // Repeated requests for the same image share one decode
+            DecodeTask active = activeDecodes.get(photoKey);
+            if (active != null)
+            {
+                ++active.requesters;
+                return;
+            }
+
+            if (memoryCache.get(photoKey) != null)
+            {
+                return;
+            }
+
+            DecodeTask task = new DecodeTask(key, photoKey, targetWidth, targetHeight);
+            task.future = decodeExecutor.submit(task);
+            activeDecodes.put(photoKey, task);
+        }
+    }
+
+    private void decodeImage(@NonNull final String key, @NonNull final String photoKey, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    {
+        boolean isVariant = !photoKey.equals(key);
+
+        Bitmap bitmap = null;
+        if (isVariant && variantDiskCacheEnabled)
+        {
+            bitmap = loadVariant(key, photoKey);
+        }
+
+        if (bitmap == null)
+        {
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            bitmap = decodeOriginal(key, targetWidth, targetHeight, opt);
+
+            boolean shrunk = (opt.inSampleSize > 1 || (opt.inDensity > 0 && opt.inTargetDensity < opt.inDensity));
+            if (bitmap != null && isVariant && variantDiskCacheEnabled && shrunk)
+            {
+                saveVariant(key, photoKey, bitmap);
+            }
+        }
+
+        if (bitmap != null)
+        {
+            memoryCache.add(photoKey, bitmap);
+        }
+
+        // Decoding is not a new download, so the original's meta data is left alone.  Its cache
+        // timestamp is what variants are matched to.
+        UURemoteData.sharedInstance().notifyDataAvailable(key);
+    }
+
+    @Nullable
+    private Bitmap decodeOriginal(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final BitmapFactory.Options opt)
+    {
+        File file = UUDataCache.sharedInstance().getDiskFileName(key);
+
+        // The bounds pass is only needed the first time each download of an image is decoded
+        Size size = currentImageSize(key);
+        if (size != null)
+        {
+            opt.outWidth = size.getWidth();
+            opt.outHeight = size.getHeight();
+        }
+        else
+        {
+            opt.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
+            updateMetaDataIfNeeded(key, opt);
+        }
+
+        opt.inJustDecodeBounds = false;
+        opt.inPreferredConfig = preferredConfig;
 
-                    BitmapFactory.Options opt = new BitmapFactory.Options();
-                    opt.inJustDecodeBounds = true;
-                    BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
-                    updateMetaDataIfNeeded(key, opt);
+        if (targetWidth != null && targetHeight != null)
+        {
+            opt.inSampleSize = calculateSampleSize(opt.outWidth, opt.outHeight, targetWidth, targetHeight);
+
+            if (sampleStrategy == SampleStrategy.EXACT_FIT)
+            {
+                setExactFitDensity(opt, targetWidth, targetHeight);
+            }
+        }
 
-                    opt.inJustDecodeBounds = false;
-                    opt.inSampleSize = getSampleSize(opt, targetWidth, targetHeight);
+        Bitmap bitmap;
 
-                    Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
-                    memoryCache.add(photoKey, bitmap);
-                    UURemoteData.sharedInstance().notifyDataDownloaded(key);
-                });
+        UUBitmapPool pool = memoryCache.bitmapPool;
+        if (pool != null)
+        {
+            bitmap = pool.decodeFile(file.getAbsolutePath(), opt);
+        }
+        else
+        {
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
+        }
+
+        if (bitmap != null && opt.inDensity > 0)
+        {
+            // Undo the density tag the scaled decode leaves behind, so the bitmap draws at the
+            // same size as any other decode
+            bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Calculates the largest power of two sample size that keeps an image at least as big as a
+     * target size in both dimensions
+     *
+     * @param width image width
+     * @param height image height
+     * @param targetWidth target width
+     * @param targetHeight target height
+     * @return a sample size of at least one
+     */
+    public static int calculateSampleSize(final int width, final int height, final int targetWidth, final int targetHeight)
+    {
+        int sampleSize = 1;
+
+        if (width <= 0 || height <= 0 || targetWidth <= 0 || targetHeight <= 0)
+        {
+            return sampleSize;
+        }
+
+        while ((width / (sampleSize * 2)) >= targetWidth && (height / (sampleSize * 2)) >= targetHeight)
+        {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    // Scales the sampled size down the rest of the way so it just covers the target
+    private static void setExactFitDensity(@NonNull final BitmapFactory.Options opt, final int targetWidth, final int targetHeight)
+    {
+        int sampledWidth = opt.outWidth / opt.inSampleSize;
+        int sampledHeight = opt.outHeight / opt.inSampleSize;
+
+        if (sampledWidth <= targetWidth || sampledHeight <= targetHeight)
+        {
+            return;
+        }
+
+        // The dimension that needs the least scaling decides, so the other still covers its target
+        boolean widthDecides = ((long)targetWidth * sampledHeight >= (long)targetHeight * sampledWidth);
+
+        opt.inScaled = true;
+        opt.inDensity = widthDecides ? sampledWidth : sampledHeight;
+        opt.inTargetDensity = widthDecides ? targetWidth : targetHeight;
+    }
+
+    /**
+     * Gets the file a variant is saved to.  The name includes the cache timestamp of the original,
+     * so replacing the original by any means leaves older variants unused until they are trimmed.
+     *
+     * @param key remote path of the original
+     * @param photoKey variant key
+     * @return a file, which may or may not exist
+     */
+    @NonNull
+    File getVariantFile(@NonNull final String key, @NonNull final String photoKey)
+    {
+        long sourceTimestamp = UUDataCache.sharedInstance().getTimestamp(key);
+        return new File(variantFolder, String.format(Locale.US, "%s_%d", hashKey(photoKey), sourceTimestamp));
+    }
 
+    @Nullable
+    private Bitmap loadVariant(@NonNull final String key, @NonNull final String photoKey)
+    {
+        try
+        {
+            File file = getVariantFile(key, photoKey);
+            if (!file.exists())
+            {
                 return null;
             }
+
+            // Keeps recently used variants when the folder is trimmed
+            file.setLastModified(System.currentTimeMillis());
+
+            String path = file.getAbsolutePath();
+
+            BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inPreferredConfig = preferredConfig;
+
+            UUBitmapPool pool = memoryCache.bitmapPool;
+            if (pool != null)
+            {
+                opt.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(path, opt);
+                opt.inJustDecodeBounds = false;
+
+                if (opt.outWidth <= 0 || opt.outHeight <= 0)
+                {
+                    return null;
+                }
+
+                return pool.decodeFile(path, opt);
+            }
+
+            return BitmapFactory.decodeFile(path, opt);
         }
-        else if (!skipDownload)
+        catch (Exception ex)
         {
-            UURemoteData.sharedInstance().getData(key);
+            UULog.error(getClass(), "loadVariant", ex);
         }
 
         return null;
     }
 
-    @NonNull
-    private String getPhotoKey(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    private void saveVariant(@NonNull final String key, @NonNull final String photoKey, @NonNull final Bitmap bitmap)
     {
-        String dimPart = "";
+        try
+        {
+            Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
 
-        if (targetWidth != null && targetHeight != null)
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (!bitmap.compress(format, VARIANT_JPEG_QUALITY, bos))
+            {
+                return;
+            }
+
+            byte[] data = bos.toByteArray();
+            File file = getVariantFile(key, photoKey);
+            File tempFile = new File(variantFolder, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+
+            UUFile.createFoldersIfNeeded(variantFolder);
+            if (UUFile.writeFileAtomically(file, tempFile, data))
+            {
+                trimVariantsIfNeeded(data.length);
+            }
+        }
+        catch (Exception ex)
         {
-            dimPart = String.format(Locale.US, "_w%d_w%d", targetWidth, targetHeight);
+            UULog.error(getClass(), "saveVariant", ex);
         }
+    }
 
-        return String.format(Locale.US, "%s%s", key, dimPart);
+    // Deletes the least recently used variants once the folder is over its size limit
+    private void trimVariantsIfNeeded(final long addedBytes)
+    {
+        synchronized (variantLock)
+        {
+            File[] files = null;
+
+            if (variantDiskUsage < 0)
+            {
+                files = variantFolder.listFiles();
+                variantDiskUsage = sumFileLengths(files);
+            }
+            else
+            {
+                variantDiskUsage += addedBytes;
+            }
+
+            long maxSize = maxVariantDiskCacheSize;
+            if (variantDiskUsage <= maxSize)
+            {
+                return;
+            }
+
+            if (files == null)
+            {
+                files = variantFolder.listFiles();
+            }
+
+            if (files == null)
+            {
+                return;
+            }
+
+            // Leave some room so the next few saves don't trim again
+            long target = maxSize - (maxSize / 10);
+
+            Arrays.sort(files, (lhs, rhs) -> Long.compare(lhs.lastModified(), rhs.lastModified()));
+
+            variantDiskUsage = sumFileLengths(files);
+
+            for (File file : files)
+            {
+                if (variantDiskUsage <= target)
+                {
+                    break;
+                }
+
+                long length = file.length();
+                if (UUFile.deleteFile(file))
+                {
+                    variantDiskUsage -= length;
+                }
+            }
+        }
+    }
+
+    private static long sumFileLengths(@Nullable final File[] files)
+    {
+        long total = 0;
+
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                total += file.length();
+            }
+        }
+
+        return total;
+    }
+
+    @NonNull
+    private static String hashKey(@NonNull final String key)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return UUString.byteToHex(digest.digest(UUString.stringToUtf8Bytes(key)));
+        }
+        catch (Exception ex)
+        {
+            // SHA-1 is always available, but fall back to a padded hash code just in case
+            return String.format(Locale.US, "%08X", key.hashCode());
+        }
     }
 
-    private int getSampleSize(@NonNull BitmapFactory.Options bmOptions, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    private static long getLong(@NonNull final HashMap<String, Object> md, @NonNull final String key)
+    {
+        Object val = md.get(key);
+        return (val instanceof Number) ? ((Number)val).longValue() : 0;
+    }
+
+    @NonNull
+    private String getPhotoKey(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
     {
-        int scaleFactor = 1;
+        String dimPart = "";
 
         if (targetWidth != null && targetHeight != null)
         {
-            scaleFactor = Math.min(bmOptions.outWidth / targetWidth, bmOptions.outHeight / targetHeight);
+            dimPart = String.format(Locale.US, "_w%d_w%d", targetWidth, targetHeight);
         }
 
-        return scaleFactor;
+        return String.format(Locale.US, "%s%s", key, dimPart);
     }
 
     private void updateMetaDataIfNeeded(@NonNull final String key, BitmapFactory.Options opt)
@@ -158,14 +745,30 @@ public class UURemoteImage
             }
         }
 
-        if (w != opt.outWidth || h != opt.outHeight)
+        long downloadTimestamp = getLong(md, MetaData.DownloadTimestamp);
+
+        if (w != opt.outWidth || h != opt.outHeight || downloadTimestamp != getLong(md, MetaData.ImageSizeTimestamp))
         {
             md.put(MetaData.ImageWidth, opt.outWidth);
             md.put(MetaData.ImageHeight, opt.outHeight);
+            md.put(MetaData.ImageSizeTimestamp, downloadTimestamp);
             setMetaData(md, key);
         }
     }
 
+    // The recorded size of an original, or null if it was read from an older download
+    @Nullable
+    private Size currentImageSize(@NonNull final String key)
+    {
+        HashMap<String, Object> md = getMetaData(key);
+        if (getLong(md, MetaData.ImageSizeTimestamp) != getLong(md, MetaData.DownloadTimestamp))
+        {
+            return null;
+        }
+
+        return imageSize(key);
+    }
+
     public boolean isDownloadPending(@NonNull final String key)
     {
         return UURemoteData.sharedInstance().isDownloadPending(key);
@@ -193,9 +796,9 @@ public class UURemoteImage
         {
             Object wo = md.get(MetaData.ImageWidth);
             Object ho = md.get(MetaData.ImageHeight);
-            if (wo instanceof Integer && ho instanceof Integer)
+            if (wo instanceof Number && ho instanceof Number)
             {
-                size = new Size((Integer)wo, (Integer)ho);
+                size = new Size(((Number)wo).intValue(), ((Number)ho).intValue());
             }
         }
 
@@ -203,8 +806,54 @@ public class UURemoteImage
     }
 
 
+    private class DecodeTask implements Runnable
+    {
+        private final String key;
+        private final String photoKey;
+        private final Integer targetWidth;
+        private final Integer targetHeight;
+        private Future<?> future;
+
+        // Number of getImage calls waiting on this decode, guarded by activeDecodes
+        private int requesters = 1;
+
+        DecodeTask(@NonNull final String key, @NonNull final String photoKey, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+        {
+            this.key = key;
+            this.photoKey = photoKey;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                decodeImage(key, photoKey, targetWidth, targetHeight);
+            }
+            catch (Exception ex)
+            {
+                UULog.error(getClass(), "run", ex);
+            }
+            finally
+            {
+                synchronized (activeDecodes)
+                {
+                    // A cancelled and re-requested key may already have a newer task
+                    if (activeDecodes.get(photoKey) == this)
+                    {
+                        activeDecodes.remove(photoKey);
+                    }
+                }
+            }
+        }
+    }
+
     static class MemoryCache extends LruCache<String, Bitmap>
     {
+        private volatile UUBitmapPool bitmapPool;
+
         MemoryCache(final int cacheSize)
         {
             super(cacheSize);
@@ -213,9 +862,9 @@ public class UURemoteImage
         @Override
         protected int sizeOf(String key, Bitmap value)
         {
-            // The cache size will be measured in kilobytes rather than
-            // number of items.
-            return value.getByteCount() / 1024;
+            // Measured in bytes.  The allocation can be larger than the pixels when the bitmap
+            // reused a bigger one from the pool.
+            return value.getAllocationByteCount();
         }
 
         void add(@NonNull final String key, @NonNull final Bitmap bitmap)